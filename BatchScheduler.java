@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent single-sentence decode requests into micro-batches. A dispatcher thread takes the first waiting
+ * request, gathers more until the batch is full or the first request has waited the maximum time, and hands the batch
+ * to a worker pool, which decodes it with one model read and one decoder and completes each caller's future. A small,
+ * bounded delay buys amortized dispatch and a decoder that stays hot across the batch
+ */
+public class BatchScheduler implements AutoCloseable {
+    final ModelHolder models;           //model every batch decodes with
+    final int maxBatch;                 //most requests in one batch
+    final long maxWaitNanos;            //longest the first request of a batch waits for company
+    final ExecutorService workers;      //decodes the batches
+    DecodeOptions options = DecodeOptions.EXHAUSTIVE;   //pruning settings for every sentence
+    final LongAdder batches = new LongAdder();          //batches dispatched
+    final LongAdder requests = new LongAdder();         //requests dispatched
+    private final BlockingQueue<Request> queue;         //requests waiting to be batched
+    private final Thread dispatcher;                    //forms the batches
+    private volatile boolean closed;                    //whether close has been called
+
+    /**
+     * A sentence waiting to be decoded, and the future its caller waits on
+     */
+    static class Request {
+        final String sentence;      //sentence to decode
+        final CompletableFuture<ArrayList<String>> result = new CompletableFuture<>();  //completed with its tags
+
+        /**
+         * @param sentence Sentence to decode
+         */
+        Request(String sentence) {
+            this.sentence = sentence;
+        }
+    }
+
+    /**
+     * Construct a scheduler and start its dispatcher
+     *
+     * @param models       Holder of the model to decode with
+     * @param maxBatch     Most requests in one batch
+     * @param maxWaitNanos Longest the first request of a batch waits for more to arrive
+     * @param capacity     Most requests waiting to be batched; submit blocks beyond that
+     * @param workers      Pool to decode batches on, shut down by close
+     */
+    public BatchScheduler(ModelHolder models, int maxBatch, long maxWaitNanos, int capacity, ExecutorService workers) {
+        if (maxBatch < 1) throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+        if (maxWaitNanos < 0) throw new IllegalArgumentException("Wait must not be negative: " + maxWaitNanos);
+        this.models = models;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = maxWaitNanos;
+        this.workers = workers;
+        queue = new ArrayBlockingQueue<>(capacity);
+        dispatcher = new Thread(this::dispatch, "batch-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queue a sentence for decoding, waiting for room if the queue is full
+     *
+     * @param sentence A line of words to tag
+     * @return Future completed with the sentence's tags, or exceptionally if decoding failed or the scheduler closed
+     */
+    public CompletableFuture<ArrayList<String>> submit(String sentence) {
+        Request request = new Request(sentence);
+        try {
+            if (closed) throw new RejectedExecutionException("Scheduler is closed");
+            queue.put(request);
+            //close may have drained the queue between the check and the put
+            if (closed && queue.remove(request)) throw new RejectedExecutionException("Scheduler is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.result.completeExceptionally(e);
+        } catch (RejectedExecutionException e) {
+            request.result.completeExceptionally(e);
+        }
+        return request.result;
+    }
+
+    /**
+     * @return Average number of requests per dispatched batch
+     */
+    public double meanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) requests.sum() / count;
+    }
+
+    /**
+     * Form batches until closed
+     */
+    private void dispatch() {
+        ArrayList<Request> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                Request first = queue.take();
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    //take whatever is already waiting without blocking, and only wait when nothing is
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    Request next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //closing; whatever was gathered is still dispatched below
+            }
+            if (batch.isEmpty()) continue;
+            Request[] work = batch.toArray(new Request[0]);
+            batch.clear();
+            batches.increment();
+            requests.add(work.length);
+            try {
+                workers.execute(() -> decode(work));
+            } catch (RejectedExecutionException e) {
+                for (Request request : work) request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Decode a batch on the calling worker thread and complete its futures
+     *
+     * @param work Requests of the batch
+     */
+    private void decode(Request[] work) {
+        //one model read for the whole batch, and one decoder of it borrowed from the holder, so a swapped-out model is
+        //dropped with the decoders that used it
+        ViterbiDecoder decoder = models.borrow(models.get());
+        try {
+            for (Request request : work) {
+                try {
+                    request.result.complete(decoder.viterbi(request.sentence, options));
+                } catch (RuntimeException e) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+        } finally {
+            models.release(decoder);
+        }
+    }
+
+    /**
+     * Stop batching, fail every request still waiting, and shut down the worker pool once dispatched batches finish
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) request.result.completeExceptionally(new CancellationException("Scheduler closed"));
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A pair of aligned word and tag files tokenized once into int IDs, so that repeated training and evaluation runs skip
+ * reading, lowercasing and hashing text and only count or decode integers. Words are lowercased and split exactly as
+ * buildHMM does, tags split as they are, and every token is interned into the corpus's own vocabularies, with '#' as
+ * tag 0 so counts can be kept in the corpus's IDs directly.
+ *
+ * The file uses the conventions of ModelFile (little-endian, arrays 8-byte aligned) with its own magic: a header
+ * (magic, version, sentence and token counts), the tag and word vocabularies, where each sentence's words and tags
+ * start, then every word ID and every tag ID. The whole file is one buffer, which bounds it at 2GB; compile sizes the
+ * file before writing it and refuses a corpus that would not fit
+ */
+public class CompiledCorpus {
+    static final int MAGIC = 0x434D4D48;    //"HMMC" read as little-endian bytes
+    static final int VERSION = 1;           //bumped whenever the layout changes
+    final Vocabulary tags;          //tag -> corpus tag ID, with '#' interned as 0
+    final Vocabulary words;         //lowercased word -> corpus word ID
+    final IntBuffer wordStart;      //sentence s's word IDs are at [wordStart[s], wordStart[s + 1]) of wordIds
+    final IntBuffer tagStart;       //sentence s's tag IDs are at [tagStart[s], tagStart[s + 1]) of tagIds
+    final IntBuffer wordIds;        //word IDs of every sentence, back to back
+    final IntBuffer tagIds;         //tag IDs of every sentence, back to back
+    final int size;                 //number of sentences
+
+    /**
+     * Construct a corpus over its tables
+     */
+    private CompiledCorpus(Vocabulary tags, Vocabulary words, IntBuffer wordStart, IntBuffer tagStart, IntBuffer wordIds, IntBuffer tagIds) {
+        this.tags = tags;
+        this.words = words;
+        this.wordStart = wordStart;
+        this.tagStart = tagStart;
+        this.wordIds = wordIds;
+        this.tagIds = tagIds;
+        size = wordStart.capacity() - 1;
+    }
+
+    /**
+     * Tokenize a pair of aligned word and tag files into a compiled corpus file. Line pairs are read until either file
+     * runs out, as buildHMM reads them
+     *
+     * @param wordFile Path to word file, plain or gzipped
+     * @param tagFile  Path to tag file, plain or gzipped
+     * @param out      Compiled corpus file to write, replaced if it exists
+     * @return Number of sentences compiled
+     * @throws IOException Possible IOException when reading or writing, or if the corpus is too large for one file
+     */
+    public static int compile(String wordFile, String tagFile, Path out) throws IOException {
+        Vocabulary tags = new Vocabulary(), words = new Vocabulary();
+        tags.add("#");
+        Tokenizer wordTokenizer = new Tokenizer(true), tagTokenizer = new Tokenizer(false);
+        int[] wordStart = new int[1024], tagStart = new int[1024];
+        int[] wordIds = new int[1 << 16], tagIds = new int[1 << 16];
+        int size = 0;
+        try (BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+             BufferedReader tagIn = PrefetchInputStream.reader(tagFile)) {
+            String wordLine, tagLine;
+            while ((wordLine = wordIn.readLine()) != null && (tagLine = tagIn.readLine()) != null) {
+                int n = wordTokenizer.tokenize(wordLine, words, true);
+                int numTags = tagTokenizer.tokenize(tagLine, tags, true);
+                int w = wordStart[size], t = tagStart[size];
+                //every array has to fit in the one buffer the file is read into
+                if (4L * (w + n + t + numTags + 2L * size) > Integer.MAX_VALUE) throw new IOException("Corpus too large to compile into one file: " + wordFile);
+                if (size + 1 == wordStart.length) {
+                    wordStart = Arrays.copyOf(wordStart, wordStart.length * 2);
+                    tagStart = Arrays.copyOf(tagStart, tagStart.length * 2);
+                }
+                if (w + n > wordIds.length) wordIds = Arrays.copyOf(wordIds, Math.max(w + n, wordIds.length * 2));
+                if (t + numTags > tagIds.length) tagIds = Arrays.copyOf(tagIds, Math.max(t + numTags, tagIds.length * 2));
+                System.arraycopy(wordTokenizer.ids(), 0, wordIds, w, n);
+                System.arraycopy(tagTokenizer.ids(), 0, tagIds, t, numTags);
+                size++;
+                wordStart[size] = w + n;
+                tagStart[size] = t + numTags;
+            }
+        }
+        //size the file before writing any of it, so a corpus too large to read back never leaves a file behind
+        long end = words.writeEnd(tags.writeEnd(20));
+        end = ModelFile.align(end) + 4L * (size + 1);
+        end = ModelFile.align(end) + 4L * (size + 1);
+        end = ModelFile.align(end) + 4L * wordStart[size];
+        end = ModelFile.align(end) + 4L * tagStart[size];
+        if (end > Integer.MAX_VALUE) throw new IOException("Corpus too large to compile into one file (" + end + " bytes): " + wordFile);
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ModelFile.Writer writer = new ModelFile.Writer(channel);
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putInt(size);
+            writer.putInt(wordStart[size]);
+            writer.putInt(tagStart[size]);
+            tags.write(writer);
+            words.write(writer);
+            writer.putInts(IntBuffer.wrap(wordStart), size + 1);
+            writer.putInts(IntBuffer.wrap(tagStart), size + 1);
+            writer.putInts(IntBuffer.wrap(wordIds), wordStart[size]);
+            writer.putInts(IntBuffer.wrap(tagIds), tagStart[size]);
+            writer.flush();
+        } catch (IOException | RuntimeException e) {
+            //a partly written corpus would fail to load, or worse, load short
+            Files.deleteIfExists(out);
+            throw e;
+        }
+        return size;
+    }
+
+    /**
+     * Load a compiled corpus file onto the heap
+     *
+     * @param path Compiled corpus file
+     * @return The corpus, viewing the file's bytes in place
+     * @throws IOException Possible IOException when reading, or if the file is not a compiled corpus of a supported
+     *                     version
+     */
+    public static CompiledCorpus load(Path path) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Corpus file too large to load: " + path);
+            buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) throw new IOException("Unexpected end of corpus file: " + path);
+            }
+        }
+        return read(buf.flip(), path);
+    }
+
+    /**
+     * Memory-map a compiled corpus file, read-only, so repeated runs share one copy in the page cache
+     *
+     * @param path Compiled corpus file
+     * @return The mapped corpus
+     * @throws IOException Possible IOException when mapping, or if the file is not a compiled corpus of a supported
+     *                     version
+     */
+    public static CompiledCorpus map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Corpus file too large to map: " + path);
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+        }
+    }
+
+    /**
+     * Build a corpus over the contents of a compiled corpus file, viewing its tables in place
+     *
+     * @param buf  Whole file, positioned at its start
+     * @param path Compiled corpus file, for error messages
+     * @return The corpus
+     * @throws IOException If the file is not a compiled corpus of a supported version
+     */
+    private static CompiledCorpus read(ByteBuffer buf, Path path) throws IOException {
+        ModelFile.Reader in = new ModelFile.Reader(buf);
+        if (buf.remaining() < 8 || in.getInt() != MAGIC) throw new IOException("Not a compiled corpus file: " + path);
+        int version = in.getInt();
+        if (version != VERSION) throw new IOException("Unsupported corpus file version " + version + ": " + path);
+        int size = in.getInt();
+        int numWords = in.getInt();
+        int numTags = in.getInt();
+        Vocabulary tags = Vocabulary.read(in);
+        Vocabulary words = Vocabulary.read(in);
+        IntBuffer wordStart = in.ints(size + 1);
+        IntBuffer tagStart = in.ints(size + 1);
+        IntBuffer wordIds = in.ints(numWords);
+        IntBuffer tagIds = in.ints(numTags);
+        return new CompiledCorpus(tags, words, wordStart, tagStart, wordIds, tagIds);
+    }
+
+    /**
+     * @return Number of sentences
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Count every sentence of the corpus in the corpus's own IDs
+     *
+     * @return The raw counts, over the corpus's vocabularies
+     */
+    public CountTable count() {
+        CountTable counts = new CountTable(tags, words);
+        counts.addSentences(this, 0, size);
+        return counts;
+    }
+
+    /**
+     * @param vocab Vocabulary of a model
+     * @param mine  One of this corpus's vocabularies
+     * @return The vocab ID of every ID of mine, -1 where vocab lacks it
+     */
+    static int[] idMap(Vocabulary vocab, Vocabulary mine) {
+        int[] ids = new int[mine.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = vocab.id(mine.get(i));
+        return ids;
+    }
+
+    /**
+     * Compile a pair of training or test files
+     *
+     * @param args wordFile tagFile corpusFile
+     * @throws IOException Possible IOException when reading or writing
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) HMM.exitUsage("Expected 3 arguments, got " + args.length, "Usage: java CompiledCorpus wordFile tagFile corpusFile");
+        long start = System.nanoTime();
+        int size = compile(args[0], args[1], Paths.get(args[2]));
+        System.out.printf("Compiled %,d sentences in %.2f s%n", size, (System.nanoTime() - start) / 1e9);
+    }
+}
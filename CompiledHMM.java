@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compiled, read-only form of a trained HMM: tags and words are interned into dense int IDs, transition scores live in
+ * a flat tag x tag matrix and emission scores in a sparse per-word index of the tags that emitted it, so decoding never
+ * hashes a String or unboxes a Double. The tables are primitive buffers, wrapping heap arrays for a freshly compiled
+ * model or viewing the bytes of a model file that was loaded or memory-mapped. A model never changes once built, so any
+ * number of threads may decode with it at once, each through its own ViterbiDecoder
+ */
+public class CompiledHMM {
+    static final int START = 0;     //tag ID of the '#' start state
+    final Vocabulary tags;          //tag -> tag ID, with '#' always interned as START
+    final Vocabulary words;         //observed word -> word ID
+    final String[] tagNames;        //tag ID -> tag
+    final int[] tagRank;            //tag ID -> position of its tag in name order, which breaks ties between equal scores
+    final int numTags;              //number of tag IDs, including START
+    final DoubleBuffer trans;       //transition scores in form [currTag * numTags + nextTag], NEGATIVE_INFINITY if never observed
+    final IntBuffer succStart;      //observed successors of tag t are succ[succStart[t]] until succ[succStart[t + 1]]
+    final IntBuffer succ;           //observed successor tag IDs, in the same order the HMM's transition map iterates them
+    final IntBuffer emitStart;      //tags that emitted word w are at indices emitStart[w] until emitStart[w + 1]
+    final IntBuffer emitTag;        //tag IDs that emitted each word, sorted ascending within each word
+    final DoubleBuffer emitScore;   //score of the tag at the same index emitting the word
+    final double U;                 //unseen word penalty
+
+    /**
+     * Construct a compiled HMM from already-built tables
+     */
+    CompiledHMM(Vocabulary tags, Vocabulary words, DoubleBuffer trans, IntBuffer succStart, IntBuffer succ,
+                IntBuffer emitStart, IntBuffer emitTag, DoubleBuffer emitScore, double U) {
+        this.tags = tags;
+        this.words = words;
+        this.numTags = tags.size();
+        this.tagNames = new String[numTags];
+        for (int t = 0; t < numTags; t++) tagNames[t] = tags.get(t);
+        //rank the tags by name, so ties come out as HMM.viterbi breaks them whatever order the IDs were assigned in
+        Integer[] byName = new Integer[numTags];
+        for (int t = 0; t < numTags; t++) byName[t] = t;
+        Arrays.sort(byName, Comparator.comparing(t -> tagNames[t]));
+        this.tagRank = new int[numTags];
+        for (int r = 0; r < numTags; r++) tagRank[byName[r]] = r;
+        this.trans = trans;
+        this.succStart = succStart;
+        this.succ = succ;
+        this.emitStart = emitStart;
+        this.emitTag = emitTag;
+        this.emitScore = emitScore;
+        this.U = U;
+    }
+
+    /**
+     * Compile a trained HMM whose scores have already been normalized (which also builds its tag dictionary)
+     *
+     * @param hmm HMM after buildHMM (or createScores and normalizeScores)
+     * @return The compiled model
+     */
+    public static CompiledHMM compile(HMM hmm) {
+        //intern every tag, start state first so it is always START
+        Vocabulary tags = new Vocabulary();
+        tags.add("#");
+        for (String tag : hmm.transScores.keySet()) {
+            tags.add(tag);
+            for (String nextTag : hmm.transScores.get(tag).keySet()) tags.add(nextTag);
+        }
+        for (String tag : hmm.observationScores.keySet()) tags.add(tag);
+        int numTags = tags.size();
+        //fill the dense transition matrix and the successor lists
+        double[] trans = new double[numTags * numTags];
+        Arrays.fill(trans, Double.NEGATIVE_INFINITY);
+        int[] succStart = new int[numTags + 1];
+        int numSucc = 0;
+        for (HashMap<String, Double> nextScores : hmm.transScores.values()) numSucc += nextScores.size();
+        int[] succ = new int[numSucc];
+        int pos = 0;
+        for (int t = 0; t < numTags; t++) {
+            succStart[t] = pos;
+            HashMap<String, Double> nextScores = hmm.transScores.get(tags.get(t));
+            if (nextScores == null) continue;
+            for (String nextTag : nextScores.keySet()) {
+                int next = tags.id(nextTag);
+                trans[t * numTags + next] = nextScores.get(nextTag);
+                succ[pos++] = next;
+            }
+        }
+        succStart[numTags] = pos;
+        //intern every observed word and lay out the tags that emitted it from the HMM's tag dictionary, sorted by tag ID
+        Vocabulary words = new Vocabulary();
+        int numEmit = 0;
+        for (ArrayList<String> wordTags : hmm.tagDictionary.values()) numEmit += wordTags.size();
+        int[] emitStart = new int[hmm.tagDictionary.size() + 1];
+        int[] emitTag = new int[numEmit];
+        double[] emitScore = new double[numEmit];
+        pos = 0;
+        for (String word : hmm.tagDictionary.keySet()) {
+            int w = words.add(word);
+            emitStart[w] = pos;
+            for (String tag : hmm.tagDictionary.get(word)) emitTag[pos++] = tags.id(tag);
+            Arrays.sort(emitTag, emitStart[w], pos);
+            for (int i = emitStart[w]; i < pos; i++) emitScore[i] = hmm.observationScores.get(tags.get(emitTag[i])).get(word);
+        }
+        emitStart[words.size()] = pos;
+        return new CompiledHMM(tags, words, DoubleBuffer.wrap(trans), IntBuffer.wrap(succStart), IntBuffer.wrap(succ),
+                IntBuffer.wrap(emitStart), IntBuffer.wrap(emitTag), DoubleBuffer.wrap(emitScore), hmm.U);
+    }
+
+    /**
+     * Compile raw training counts straight into a model, normalizing them the way HMM.normalizeScores does. Counts of 0
+     * are treated as never observed, and words left with no counts at all are not in the model's vocabulary
+     *
+     * @param counts Raw counts, left unchanged
+     * @param U      Unseen word penalty
+     * @return The compiled model, with the same tag IDs as the counts
+     */
+    public static CompiledHMM compile(CountTable counts, double U) {
+        return compile(counts, U, new int[counts.words.size()]);
+    }
+
+    /**
+     * Compile raw training counts straight into a model, normalizing them the way HMM.normalizeScores does
+     *
+     * @param counts  Raw counts, left unchanged
+     * @param U       Unseen word penalty
+     * @param wordMap Filled with the model word ID of every word ID of the counts, -1 for words left out
+     * @return The compiled model, with the same tag IDs as the counts
+     */
+    static CompiledHMM compile(CountTable counts, double U, int[] wordMap) {
+        //copy the tag vocabulary, keeping its IDs, so later counting cannot change the model's
+        Vocabulary tags = new Vocabulary();
+        for (int t = 0; t < counts.tags.size(); t++) tags.add(counts.tags.get(t));
+        int numTags = tags.size();
+        double[] trans = new double[numTags * numTags];
+        int[] succStart = new int[numTags + 1];
+        int[] succ = new int[numTags * numTags];
+        normalizeTransitions(counts.trans, counts.tagCapacity, numTags, trans, succStart, succ);
+        int pos = succStart[numTags];
+        //find how often each tag was observed and how many tags observed each word
+        int numWords = counts.words.size();
+        long[] tagFreq = new long[numTags];
+        int[] wordTags = new int[numWords + 1];
+        for (int t = 0; t < numTags; t++) {
+            IntLongMap emitted = counts.emissions[t];
+            for (int i = 0; i < emitted.size(); i++) {
+                if (emitted.value(i) <= 0) continue;
+                tagFreq[t] += emitted.value(i);
+                wordTags[emitted.key(i)]++;
+            }
+        }
+        //intern the words that are left, in the order of the counts' IDs, and lay out where each one's tags go
+        Vocabulary words = new Vocabulary();
+        int[] emitStart = new int[numWords + 1];
+        int numEmit = 0;
+        for (int w = 0; w < numWords; w++) {
+            wordMap[w] = -1;
+            if (wordTags[w] == 0) continue;
+            int id = words.add(counts.words.get(w));
+            wordMap[w] = id;
+            emitStart[id] = numEmit;
+            numEmit += wordTags[w];
+        }
+        emitStart[words.size()] = numEmit;
+        //fill each word's tags in ascending tag ID order, so they come out sorted
+        int[] emitTag = new int[numEmit];
+        double[] emitScore = new double[numEmit];
+        int[] fill = Arrays.copyOf(emitStart, words.size());
+        for (int t = 0; t < numTags; t++) {
+            IntLongMap emitted = counts.emissions[t];
+            for (int i = 0; i < emitted.size(); i++) {
+                if (emitted.value(i) <= 0) continue;
+                int e = fill[wordMap[emitted.key(i)]]++;
+                emitTag[e] = t;
+                emitScore[e] = Math.log((double) emitted.value(i) / tagFreq[t]);
+            }
+        }
+        return new CompiledHMM(tags, words, DoubleBuffer.wrap(trans), IntBuffer.wrap(succStart),
+                IntBuffer.wrap(Arrays.copyOf(succ, pos)), IntBuffer.wrap(Arrays.copyOf(emitStart, words.size() + 1)),
+                IntBuffer.wrap(emitTag), DoubleBuffer.wrap(emitScore), U);
+    }
+
+    /**
+     * Normalize every row of raw transition counts into log probabilities, listing each tag's successors in tag ID
+     * order. Counts of 0 or less are treated as never observed
+     *
+     * @param counts    Transition counts in form [currTag * stride + nextTag]
+     * @param stride    Row length of counts
+     * @param numTags   Number of tags
+     * @param trans     Filled with the scores in form [currTag * numTags + nextTag], NEGATIVE_INFINITY if never observed
+     * @param succStart Filled with where each tag's successors start in succ, and their total at numTags
+     * @param succ      Filled with the successors of every tag, at least numTags * numTags long
+     */
+    static void normalizeTransitions(long[] counts, int stride, int numTags, double[] trans, int[] succStart, int[] succ) {
+        Arrays.fill(trans, 0, numTags * numTags, Double.NEGATIVE_INFINITY);
+        int pos = 0;
+        for (int t = 0; t < numTags; t++) {
+            succStart[t] = pos;
+            long totalFreq = 0;
+            for (int next = 0; next < numTags; next++) totalFreq += counts[t * stride + next];
+            for (int next = 0; next < numTags; next++) {
+                long count = counts[t * stride + next];
+                if (count <= 0) continue;
+                trans[t * numTags + next] = Math.log((double) count / totalFreq);
+                succ[pos++] = next;
+            }
+        }
+        succStart[numTags] = pos;
+    }
+
+    /**
+     * Write the model in the binary format of ModelFile, so it can be loaded without retraining
+     *
+     * @param path File to write, replaced if it exists
+     * @throws IOException Possible IOException when writing
+     */
+    public void save(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ModelFile.Writer out = new ModelFile.Writer(channel);
+            writeHead(out, tags, words, trans, succStart, succ, emitStart, emitTag.capacity(), U);
+            out.putInts(emitTag, emitTag.capacity());
+            out.putDoubles(emitScore, emitScore.capacity());
+            out.flush();
+        }
+    }
+
+    /**
+     * Write everything of a model file up to the emission tags, which must follow (aligned), then the emission scores
+     * (aligned), for writers that stream those instead of holding them
+     *
+     * @param out       Model file being written, at its start
+     * @param tags      Tag vocabulary, with '#' as START
+     * @param words     Word vocabulary
+     * @param trans     Transition scores in form [currTag * numTags + nextTag]
+     * @param succStart Where each tag's successors start in succ, and their total at numTags
+     * @param succ      Successors of every tag
+     * @param emitStart Where each word's emissions start, and their total at the number of words
+     * @param numEmit   Number of emissions
+     * @param U         Unseen word penalty
+     * @throws IOException Possible IOException when writing
+     */
+    static void writeHead(ModelFile.Writer out, Vocabulary tags, Vocabulary words, DoubleBuffer trans, IntBuffer succStart,
+                          IntBuffer succ, IntBuffer emitStart, int numEmit, double U) throws IOException {
+        out.putInt(ModelFile.MAGIC);
+        out.putInt(ModelFile.VERSION);
+        out.putDouble(U);
+        out.putInt(succ.capacity());
+        out.putInt(numEmit);
+        tags.write(out);
+        words.write(out);
+        out.putDoubles(trans, trans.capacity());
+        out.putInts(succStart, succStart.capacity());
+        out.putInts(succ, succ.capacity());
+        out.putInts(emitStart, emitStart.capacity());
+    }
+
+    /**
+     * Load a model written by save onto the heap. The model's tables are views of the file's bytes, with no parsing or
+     * renormalizing
+     *
+     * @param path Model file
+     * @return The loaded model
+     * @throws IOException Possible IOException when reading, or if the file is not a model of a supported version
+     */
+    public static CompiledHMM load(Path path) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Model file too large to load: " + path);
+            buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) throw new IOException("Unexpected end of model file: " + path);
+            }
+        }
+        return read(buf.flip(), path);
+    }
+
+    /**
+     * Memory-map a model written by save, read-only. Decoding reads scores straight from the mapped pages, so the model
+     * takes no heap and every process mapping the same file shares one copy of it in the page cache
+     *
+     * @param path Model file
+     * @return The mapped model
+     * @throws IOException Possible IOException when mapping, or if the file is not a model of a supported version
+     */
+    public static CompiledHMM map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //a single mapping is addressed by int, which bounds the model file at 2GB
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Model file too large to map: " + path);
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path);
+        }
+    }
+
+    /**
+     * Build a model over the contents of a model file, viewing its tables in place
+     *
+     * @param buf  Whole model file, positioned at its start
+     * @param path Model file, for error messages
+     * @return The model
+     * @throws IOException If the file is not a model of a supported version
+     */
+    private static CompiledHMM read(ByteBuffer buf, Path path) throws IOException {
+        ModelFile.Reader in = new ModelFile.Reader(buf);
+        if (buf.remaining() < 8 || in.getInt() != ModelFile.MAGIC) throw new IOException("Not an HMM model file: " + path);
+        int version = in.getInt();
+        if (version != ModelFile.VERSION) throw new IOException("Unsupported model file version " + version + ": " + path);
+        double U = in.getDouble();
+        int numSucc = in.getInt();
+        int numEmit = in.getInt();
+        Vocabulary tags = Vocabulary.read(in);
+        Vocabulary words = Vocabulary.read(in);
+        int numTags = tags.size();
+        DoubleBuffer trans = in.doubles(numTags * numTags);
+        IntBuffer succStart = in.ints(numTags + 1);
+        IntBuffer succ = in.ints(numSucc);
+        IntBuffer emitStart = in.ints(words.size() + 1);
+        IntBuffer emitTag = in.ints(numEmit);
+        DoubleBuffer emitScore = in.doubles(numEmit);
+        return new CompiledHMM(tags, words, trans, succStart, succ, emitStart, emitTag, emitScore, U);
+    }
+
+    /**
+     * @param word Lowercased word
+     * @return ID of the word, or -1 if it was never observed in training
+     */
+    public int wordId(String word) {
+        return words.id(word);
+    }
+
+    /**
+     * @param tag Tag
+     * @return ID of the tag, or -1 if it was never observed in training
+     */
+    public int tagId(String tag) {
+        return tags.id(tag);
+    }
+
+    /**
+     * @param tag Tag ID
+     * @return The tag with that ID
+     */
+    public String tagName(int tag) {
+        return tagNames[tag];
+    }
+
+    /**
+     * @param currTag Tag ID being transitioned from
+     * @param nextTag Tag ID being transitioned to
+     * @return Transition score, or NEGATIVE_INFINITY if the transition was never observed
+     */
+    public double transition(int currTag, int nextTag) {
+        return trans.get(currTag * numTags + nextTag);
+    }
+
+    /**
+     * Score of a tag emitting a word
+     *
+     * @param tag  Tag ID
+     * @param word Word ID, or -1 for an unseen word
+     * @return Emission score, or U if the tag never emitted the word in training
+     */
+    public double emission(int tag, int word) {
+        if (word < 0) return U;
+        //binary search the word's tags, which are sorted by ID
+        int lo = emitStart.get(word), hi = emitStart.get(word + 1) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midTag = emitTag.get(mid);
+            if (midTag < tag) lo = mid + 1;
+            else if (midTag > tag) hi = mid - 1;
+            else return emitScore.get(mid);
+        }
+        return U;
+    }
+
+    /**
+     * @param word Word ID, or -1 for an unseen word
+     * @return Index of the first tag that emitted the word in emitTag and emitScore
+     */
+    public int emitFrom(int word) {
+        return word < 0 ? 0 : emitStart.get(word);
+    }
+
+    /**
+     * @param word Word ID, or -1 for an unseen word
+     * @return Index just past the last tag that emitted the word in emitTag and emitScore (emitFrom(word) if none did)
+     */
+    public int emitTo(int word) {
+        return word < 0 ? 0 : emitStart.get(word + 1);
+    }
+
+    /**
+     * Run Viterbi on the given sentence with a decoder of its own; to decode many sentences, keep a decoder instead
+     *
+     * @param line A test line of words (observations) that tags need to be guessed for
+     * @return The best possible tags at each word as an ArrayList
+     */
+    public ArrayList<String> viterbi(String line) {
+        return new ViterbiDecoder(this).viterbi(line);
+    }
+
+    /**
+     * Run Viterbi on the given sentence with a decoder of its own; to decode many sentences, keep a decoder instead
+     *
+     * @param line    A test line of words (observations) that tags need to be guessed for
+     * @param options Pruning settings for this call
+     * @return The best possible tags at each word as an ArrayList
+     */
+    public ArrayList<String> viterbi(String line, DecodeOptions options) {
+        return new ViterbiDecoder(this).viterbi(line, options);
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Writes synthetic aligned sentence/tag file pairs, in the format buildHMM and testOnFiles read, for load and scaling
+ * tests. A seeded generating model fixes the tag transitions and each tag's Zipfian emission distribution, so the same
+ * model seed always describes the same "language": training and test files generated from it with different stream
+ * seeds are drawn from one distribution, and every run is reproducible
+ *
+ * Usage: java CorpusGenerator --out PREFIX [--sentences N | --bytes N[k|m|g]] [--vocab N] [--tags N] [--zipf S]
+ *        [--length fixed:N | uniform:MIN:MAX | poisson:MEAN] [--oov RATE] [--seed N] [--stream-seed N]
+ * writes PREFIX-sentences.txt and PREFIX-tags.txt
+ */
+public class CorpusGenerator {
+    final int vocab;            //number of distinct words
+    final int numTags;          //number of distinct tags
+    final double[] wordCdf;     //cumulative Zipf probabilities of word ranks 0..vocab-1
+    final double[] tagCdf;      //cumulative Zipf probabilities of successor ranks 0..numTags-1
+    final int[] wordOffset;     //tag -> word ID of its rank 0 word
+    final int[] wordStride;     //tag -> step between its consecutive word ranks, coprime with vocab
+    final int[][] successors;   //tag (numTags for the start state) -> tags ordered by how likely they follow it
+
+    /**
+     * Construct the generating model
+     *
+     * @param vocab   Number of distinct words
+     * @param numTags Number of distinct tags
+     * @param zipf    Zipf exponent of each tag's word distribution (1 is classic Zipf, higher is more skewed)
+     * @param seed    Seed fixing the tag transitions and which words each tag favors
+     */
+    public CorpusGenerator(int vocab, int numTags, double zipf, long seed) {
+        if (vocab < 1 || numTags < 1) throw new IllegalArgumentException("Need at least one word and one tag");
+        this.vocab = vocab;
+        this.numTags = numTags;
+        wordCdf = zipfCdf(vocab, zipf);
+        tagCdf = zipfCdf(numTags, 1.0);
+        Random random = new Random(seed);
+        //each tag walks the vocabulary from its own offset with its own stride, so tags favor different words
+        wordOffset = new int[numTags];
+        wordStride = new int[numTags];
+        for (int t = 0; t < numTags; t++) {
+            wordOffset[t] = random.nextInt(vocab);
+            int stride = 1 + random.nextInt(vocab);
+            while (gcd(stride, vocab) != 1) stride++;
+            wordStride[t] = stride % vocab == 0 ? 1 : stride;
+        }
+        //each tag (and the start state) gets its own shuffled preference order over the tags that can follow it
+        successors = new int[numTags + 1][];
+        for (int t = 0; t <= numTags; t++) {
+            List<Integer> order = new ArrayList<>();
+            for (int next = 0; next < numTags; next++) order.add(next);
+            Collections.shuffle(order, random);
+            successors[t] = new int[numTags];
+            for (int r = 0; r < numTags; r++) successors[t][r] = order.get(r);
+        }
+    }
+
+    /**
+     * Sentence length distribution
+     */
+    static class Lengths {
+        final String kind;      //"fixed", "uniform" or "poisson"
+        final double a, b;      //the length, the min and max, or the mean
+
+        /**
+         * @param spec fixed:N, uniform:MIN:MAX or poisson:MEAN
+         */
+        Lengths(String spec) {
+            String[] parts = spec.split(":");
+            kind = parts[0];
+            if (parts.length < 2) throw new IllegalArgumentException("No parameter in length distribution " + spec);
+            a = Double.parseDouble(parts[1]);
+            b = parts.length > 2 ? Double.parseDouble(parts[2]) : a;
+            if (!kind.equals("fixed") && !kind.equals("uniform") && !kind.equals("poisson")) {
+                throw new IllegalArgumentException("Unknown length distribution " + spec);
+            }
+        }
+
+        /**
+         * @param random Random stream
+         * @return A sentence length, at least 1
+         */
+        int sample(Random random) {
+            switch (kind) {
+                case "fixed":
+                    return Math.max(1, (int) a);
+                case "uniform":
+                    return Math.max(1, (int) a + random.nextInt((int) (b - a) + 1));
+                default:
+                    //Knuth's method, fine for the small means of sentence lengths
+                    double limit = Math.exp(-a), product = random.nextDouble();
+                    int k = 0;
+                    while (product > limit) {
+                        product *= random.nextDouble();
+                        k++;
+                    }
+                    return Math.max(1, k);
+            }
+        }
+    }
+
+    /**
+     * Write an aligned sentence file and tag file
+     *
+     * @param wordFile   Sentence file to write
+     * @param tagFile    Tag file to write
+     * @param sentences  Most sentences to write
+     * @param maxBytes   Stop once the sentence file reaches this many bytes
+     * @param lengths    Sentence length distribution
+     * @param oovRate    Fraction of words replaced by words outside the model's vocabulary
+     * @param streamSeed Seed of the sentences drawn from the model
+     * @return Number of sentences written
+     * @throws IOException Possible IOException when writing
+     */
+    public long write(Path wordFile, Path tagFile, long sentences, long maxBytes, Lengths lengths, double oovRate,
+                      long streamSeed) throws IOException {
+        Random random = new Random(streamSeed);
+        StringBuilder wordLine = new StringBuilder(), tagLine = new StringBuilder();
+        long written = 0, bytes = 0;
+        try (Writer wordOut = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(wordFile), StandardCharsets.UTF_8), 1 << 20);
+             Writer tagOut = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tagFile), StandardCharsets.UTF_8), 1 << 20)) {
+            while (written < sentences && bytes < maxBytes) {
+                wordLine.setLength(0);
+                tagLine.setLength(0);
+                int length = lengths.sample(random);
+                int tag = numTags;  //start state
+                for (int i = 0; i < length; i++) {
+                    tag = successors[tag][sample(tagCdf, random)];
+                    if (i > 0) {
+                        wordLine.append(' ');
+                        tagLine.append(' ');
+                    }
+                    //unseen words live in their own namespace so they can never collide with the model's vocabulary
+                    if (oovRate > 0 && random.nextDouble() < oovRate) wordLine.append('x').append(random.nextInt(Integer.MAX_VALUE));
+                    else wordLine.append('w').append((wordOffset[tag] + (long) sample(wordCdf, random) * wordStride[tag]) % vocab);
+                    tagLine.append('T').append(tag);
+                }
+                wordLine.append('\n');
+                tagLine.append('\n');
+                wordOut.append(wordLine);
+                tagOut.append(tagLine);
+                bytes += wordLine.length();     //ASCII only, so chars are bytes
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param n Number of ranks
+     * @param s Zipf exponent
+     * @return Cumulative probabilities of ranks 0..n-1 under Zipf's law, with P(rank r) proportional to 1/(r+1)^s
+     */
+    static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double total = 0;
+        for (int r = 0; r < n; r++) cdf[r] = total += Math.pow(r + 1, -s);
+        for (int r = 0; r < n; r++) cdf[r] /= total;
+        cdf[n - 1] = 1.0;
+        return cdf;
+    }
+
+    /**
+     * @param cdf    Cumulative probabilities
+     * @param random Random stream
+     * @return A rank drawn from the distribution
+     */
+    static int sample(double[] cdf, Random random) {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * @return Greatest common divisor of a and b
+     */
+    static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * @param size Size such as 500, 64k, 10m or 20g
+     * @return The size in bytes
+     */
+    static long parseBytes(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        long scale = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return (long) (Double.parseDouble(scale == 1 ? size : size.substring(0, size.length() - 1)) * scale);
+    }
+
+    /**
+     * Parse the options and write the corpus
+     *
+     * @param args Command-line options, see the class comment
+     * @throws IOException Possible IOException when writing
+     */
+    public static void main(String[] args) throws IOException {
+        String out = null;
+        long sentences = Long.MAX_VALUE, bytes = Long.MAX_VALUE, seed = 42, streamSeed = 1;
+        int vocab = 50000, numTags = 45;
+        double zipf = 1.0, oovRate = 0.0;
+        String length = "poisson:15";
+        String usage = "Usage: java CorpusGenerator --out PREFIX (--sentences N | --bytes N[k|m|g]) [options]";
+        Lengths lengths = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out": HMM.requireValues(args, i, 1, usage); out = args[++i]; break;
+                    case "--sentences": HMM.requireValues(args, i, 1, usage); sentences = Long.parseLong(args[++i]); break;
+                    case "--bytes": HMM.requireValues(args, i, 1, usage); bytes = parseBytes(args[++i]); break;
+                    case "--vocab": HMM.requireValues(args, i, 1, usage); vocab = Integer.parseInt(args[++i]); break;
+                    case "--tags": HMM.requireValues(args, i, 1, usage); numTags = Integer.parseInt(args[++i]); break;
+                    case "--zipf": HMM.requireValues(args, i, 1, usage); zipf = Double.parseDouble(args[++i]); break;
+                    case "--length": HMM.requireValues(args, i, 1, usage); length = args[++i]; break;
+                    case "--oov": HMM.requireValues(args, i, 1, usage); oovRate = Double.parseDouble(args[++i]); break;
+                    case "--seed": HMM.requireValues(args, i, 1, usage); seed = Long.parseLong(args[++i]); break;
+                    case "--stream-seed": HMM.requireValues(args, i, 1, usage); streamSeed = Long.parseLong(args[++i]); break;
+                    default: HMM.exitUsage("Unknown option " + args[i], usage);
+                }
+            }
+            lengths = new Lengths(length);
+        } catch (IllegalArgumentException e) {
+            //bad numbers, sizes and length distributions
+            HMM.exitUsage("Bad value: " + e.getMessage(), usage);
+        }
+        if (out == null || (sentences == Long.MAX_VALUE && bytes == Long.MAX_VALUE)) HMM.exitUsage("No output or size given", usage);
+        if (vocab < 1 || numTags < 1) HMM.exitUsage("Need at least one word and one tag", usage);
+        CorpusGenerator generator = new CorpusGenerator(vocab, numTags, zipf, seed);
+        long written = generator.write(Paths.get(out + "-sentences.txt"), Paths.get(out + "-tags.txt"), sentences, bytes,
+                lengths, oovRate, streamSeed);
+        System.out.println("Wrote " + written + " sentences to " + out + "-sentences.txt and " + out + "-tags.txt");
+    }
+}
@@ -0,0 +1,228 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * Raw training counts kept in primitive arrays and count maps over locally interned tag and word IDs. Each training
+ * worker fills its own table without any locking, and the tables are merged afterwards
+ */
+public class CountTable {
+    final Vocabulary tags;      //tag -> local tag ID, with '#' always interned as 0
+    final Vocabulary words;     //word -> local word ID
+    long[] trans;               //transition counts in form [currTag * tagCapacity + nextTag]
+    int tagCapacity;            //row length of trans, grown as new tags appear
+    IntLongMap[] emissions;     //tag ID -> {word ID -> how often the tag emitted the word}
+    final Tokenizer wordTokenizer = new Tokenizer(true);    //tokenizes word lines into this table's word IDs
+    final Tokenizer tagTokenizer = new Tokenizer(false);    //tokenizes tag lines into this table's tag IDs
+
+    /**
+     * Construct an empty count table
+     */
+    public CountTable() {
+        tags = new Vocabulary();
+        tags.add("#");
+        words = new Vocabulary();
+        tagCapacity = 16;
+        trans = new long[tagCapacity * tagCapacity];
+        emissions = new IntLongMap[tagCapacity];
+        for (int t = 0; t < tagCapacity; t++) emissions[t] = new IntLongMap();
+    }
+
+    /**
+     * Construct an empty count table over existing vocabularies, which it may add to. Tables sharing vocabularies count
+     * in the same ID space, so they can be added to and subtracted from each other directly
+     *
+     * @param tags  Tag vocabulary, with '#' interned as 0
+     * @param words Word vocabulary
+     */
+    CountTable(Vocabulary tags, Vocabulary words) {
+        if (tags.size() == 0 || !tags.get(0).equals("#")) throw new IllegalArgumentException("Tag 0 must be '#'");
+        this.tags = tags;
+        this.words = words;
+        tagCapacity = 16;
+        trans = new long[tagCapacity * tagCapacity];
+        emissions = new IntLongMap[tagCapacity];
+        for (int t = 0; t < tagCapacity; t++) emissions[t] = new IntLongMap();
+        fitTags();
+    }
+
+    /**
+     * Tokenize and count one pair of training lines, the same way buildHMM does
+     *
+     * @param wordLine Line of training words
+     * @param tagLine  Line of matching training tags
+     */
+    public void addSentence(CharSequence wordLine, CharSequence tagLine) {
+        int n = wordTokenizer.tokenize(wordLine, words, true);
+        addSentence(wordTokenizer.ids(), tagTokenizer.ids(), n, tagTokenizer.tokenize(tagLine, tags, true));
+    }
+
+    /**
+     * Tokenize and count one pair of training lines held as UTF-8 bytes in ByteBuffers, such as the views a
+     * MappedCorpus cursor hands out
+     *
+     * @param wordBuf  Buffer holding the line of training words
+     * @param wordFrom Index of the word line's first byte
+     * @param wordTo   Index just past the word line's last byte
+     * @param tagBuf   Buffer holding the line of matching training tags
+     * @param tagFrom  Index of the tag line's first byte
+     * @param tagTo    Index just past the tag line's last byte
+     */
+    public void addSentence(ByteBuffer wordBuf, int wordFrom, int wordTo, ByteBuffer tagBuf, int tagFrom, int tagTo) {
+        int n = wordTokenizer.tokenize(wordBuf, wordFrom, wordTo, words, true);
+        addSentence(wordTokenizer.ids(), tagTokenizer.ids(), n, tagTokenizer.tokenize(tagBuf, tagFrom, tagTo, tags, true));
+    }
+
+    /**
+     * Count a sentence already interned into this table's vocabularies
+     *
+     * @param wordIds Word IDs of the sentence
+     * @param tagIds  Tag IDs of the sentence
+     * @param n       Number of words
+     * @param numTags Number of tags, which must cover every word
+     */
+    void addSentence(int[] wordIds, int[] tagIds, int n, int numTags) {
+        if (numTags < n) throw new IllegalArgumentException("Training sentence has " + n + " words but only " + numTags + " tags");
+        fitTags();
+        int prevTag = 0;
+        for (int i = 0; i < n; i++) {
+            int tag = tagIds[i];
+            addObservation(wordIds[i], tag, 1);
+            addTransition(prevTag, tag, 1);
+            prevTag = tag;
+        }
+    }
+
+    /**
+     * Count a range of a compiled corpus's sentences. The corpus's vocabularies must be this table's own, as they are
+     * for the table CompiledCorpus.count builds, so its IDs are counted directly with no lookups at all
+     *
+     * @param corpus Compiled corpus
+     * @param from   First sentence to count
+     * @param to     Sentence just past the last to count
+     */
+    void addSentences(CompiledCorpus corpus, int from, int to) {
+        if (corpus.tags != tags || corpus.words != words) throw new IllegalArgumentException("Corpus does not share this table's vocabularies");
+        fitTags();
+        IntBuffer wordIds = corpus.wordIds, tagIds = corpus.tagIds;
+        for (int s = from; s < to; s++) {
+            int w = corpus.wordStart.get(s), n = corpus.wordStart.get(s + 1) - w;
+            int t = corpus.tagStart.get(s), numTags = corpus.tagStart.get(s + 1) - t;
+            if (numTags < n) throw new IllegalArgumentException("Training sentence " + s + " has " + n + " words but only " + numTags + " tags");
+            int prevTag = 0;
+            for (int i = 0; i < n; i++) {
+                int tag = tagIds.get(t + i);
+                addObservation(wordIds.get(w + i), tag, 1);
+                addTransition(prevTag, tag, 1);
+                prevTag = tag;
+            }
+        }
+    }
+
+    /**
+     * Add every count of a table sharing this table's vocabularies
+     *
+     * @param other Table to add, left unchanged
+     */
+    void add(CountTable other) {
+        add(other, 1);
+    }
+
+    /**
+     * Take away every count of a table sharing this table's vocabularies, e.g. to leave out a held-out part of the
+     * corpus these counts were built from
+     *
+     * @param other Table to subtract, left unchanged
+     */
+    void subtract(CountTable other) {
+        add(other, -1);
+    }
+
+    /**
+     * @return A copy of this table over the same vocabularies
+     */
+    CountTable copy() {
+        CountTable copy = new CountTable(tags, words);
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Add a multiple of every count of a table sharing this table's vocabularies
+     *
+     * @param other Table to add, left unchanged
+     * @param sign  Multiple of the other table's counts to add
+     */
+    private void add(CountTable other, long sign) {
+        if (other.tags != tags || other.words != words) throw new IllegalArgumentException("Count tables do not share vocabularies");
+        fitTags();
+        int numTags = Math.min(tags.size(), other.tagCapacity);
+        for (int curr = 0; curr < numTags; curr++) {
+            for (int next = 0; next < numTags; next++) {
+                long count = other.trans[curr * other.tagCapacity + next];
+                if (count != 0) addTransition(curr, next, sign * count);
+            }
+            IntLongMap counts = other.emissions[curr];
+            for (int i = 0; i < counts.size(); i++) addObservation(counts.key(i), curr, sign * counts.value(i));
+        }
+    }
+
+    /**
+     * Add these counts to the raw (not yet normalized) counts of an HMM, as markObservation and markTransition would
+     *
+     * @param hmm HMM to add the counts to
+     */
+    public void addTo(HMM hmm) {
+        int numTags = tags.size();
+        String[] tagNames = new String[numTags];
+        for (int t = 0; t < numTags; t++) tagNames[t] = tags.get(t);
+        String[] wordNames = new String[words.size()];
+        for (int w = 0; w < wordNames.length; w++) wordNames[w] = words.get(w);
+        for (int curr = 0; curr < numTags; curr++) {
+            for (int next = 0; next < numTags; next++) {
+                long count = trans[curr * tagCapacity + next];
+                if (count == 0) continue;
+                if (!hmm.transCounts.containsKey(tagNames[curr])) hmm.transCounts.put(tagNames[curr], new ObjectLongMap<>());
+                hmm.transCounts.get(tagNames[curr]).add(tagNames[next], count);
+            }
+            IntLongMap counts = emissions[curr];
+            if (counts.size() == 0) continue;
+            if (!hmm.observationCounts.containsKey(tagNames[curr])) hmm.observationCounts.put(tagNames[curr], new ObjectLongMap<>());
+            ObjectLongMap<String> observed = hmm.observationCounts.get(tagNames[curr]);
+            for (int i = 0; i < counts.size(); i++) observed.add(wordNames[counts.key(i)], counts.value(i));
+        }
+    }
+
+    /**
+     * Grow the transition matrix until every interned tag fits in it
+     */
+    private void fitTags() {
+        while (tags.size() > tagCapacity) {
+            int capacity = tagCapacity * 2;
+            long[] grown = new long[capacity * capacity];
+            for (int t = 0; t < tagCapacity; t++) System.arraycopy(trans, t * tagCapacity, grown, t * capacity, tagCapacity);
+            trans = grown;
+            emissions = Arrays.copyOf(emissions, capacity);
+            for (int t = tagCapacity; t < capacity; t++) emissions[t] = new IntLongMap();
+            tagCapacity = capacity;
+        }
+    }
+
+    /**
+     * @param curr  Local ID of the tag transitioned from
+     * @param next  Local ID of the tag transitioned to
+     * @param count Number of times to count the transition
+     */
+    private void addTransition(int curr, int next, long count) {
+        trans[curr * tagCapacity + next] += count;
+    }
+
+    /**
+     * @param word  Local ID of the observed word
+     * @param tag   Local ID of the tag it was observed with
+     * @param count Number of times to count the observation
+     */
+    private void addObservation(int word, int tag, long count) {
+        emissions[tag].add(word, count);
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * k-fold cross-validation over a pair of training files. The corpus is read, tokenized and interned once into flat
+ * arrays of word and tag IDs; each fold's counts are built once from those arrays, and their sum gives the counts of
+ * the whole corpus. A fold's model is then the whole corpus's counts minus the fold's own, compiled directly, and every
+ * fold is trained and evaluated concurrently on its held-out sentences without re-tokenizing them. The held-out
+ * sentences are scored against their tag lines split as testOnFiles splits them, every tag counting. Runs with different
+ * settings (e.g. several values of U) reuse the corpus and counts
+ *
+ * Usage: java CrossValidator wordFile tagFile [--folds N] [--U value,value,...] [--threads N]
+ */
+public class CrossValidator {
+    final Vocabulary tags = new Vocabulary();   //tag -> tag ID over the whole corpus, with '#' as 0
+    final Vocabulary words = new Vocabulary();  //word -> word ID over the whole corpus
+    int[] wordIds = new int[1 << 16];           //word IDs of every sentence, one after another
+    int[] tagIds = new int[1 << 16];            //matching tag IDs
+    int[] sentStart = new int[1 << 10];         //sentence s is at indices sentStart[s] until sentStart[s + 1]
+    int[] goldIds = new int[1 << 16];           //tag IDs of every tag line split as testOnFiles does, -1 for unseen tags
+    int[] goldStart = new int[1 << 10];         //sentence s's correct tags are at goldStart[s] until goldStart[s + 1]
+    int numSentences;                           //number of sentences in the corpus
+    final int folds;                            //number of folds
+    private CountTable[] foldCounts;            //counts of each fold's sentences, built on the first run
+    private CountTable totalCounts;             //counts of the whole corpus, the sum of foldCounts
+
+    /**
+     * Read, tokenize and intern a corpus, the same way buildHMM reads it
+     *
+     * @param wordFile Path to word file, plain or gzipped
+     * @param tagFile  Path to tag file, plain or gzipped
+     * @param folds    Number of folds, at least 2
+     * @throws IOException Possible IOException when reading
+     */
+    public CrossValidator(String wordFile, String tagFile, int folds) throws IOException {
+        if (folds < 2) throw new IllegalArgumentException("Need at least 2 folds: " + folds);
+        this.folds = folds;
+        tags.add("#");
+        Tokenizer wordTokenizer = new Tokenizer(true), tagTokenizer = new Tokenizer(false);
+        try (BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+             BufferedReader tagIn = PrefetchInputStream.reader(tagFile)) {
+            String wordLine, tagLine;
+            int end = 0, goldEnd = 0;
+            while ((wordLine = wordIn.readLine()) != null && (tagLine = tagIn.readLine()) != null) {
+                int n = wordTokenizer.tokenize(wordLine, words, true);
+                int numTags = tagTokenizer.tokenize(tagLine, tags, true);
+                if (numTags < n) throw new IllegalArgumentException("Training sentence has " + n + " words but only " + numTags + " tags");
+                //append the sentence, keeping only as many tags as it has words
+                while (end + n > wordIds.length) {
+                    wordIds = Arrays.copyOf(wordIds, wordIds.length * 2);
+                    tagIds = Arrays.copyOf(tagIds, tagIds.length * 2);
+                }
+                System.arraycopy(wordTokenizer.ids(), 0, wordIds, end, n);
+                System.arraycopy(tagTokenizer.ids(), 0, tagIds, end, n);
+                //the correct tags to score the sentence against when it is held out, all of them
+                int numGold = tagTokenizer.split(tagLine, tags);
+                while (goldEnd + numGold > goldIds.length) goldIds = Arrays.copyOf(goldIds, goldIds.length * 2);
+                System.arraycopy(tagTokenizer.ids(), 0, goldIds, goldEnd, numGold);
+                if (numSentences + 2 > sentStart.length) {
+                    sentStart = Arrays.copyOf(sentStart, sentStart.length * 2);
+                    goldStart = Arrays.copyOf(goldStart, goldStart.length * 2);
+                }
+                goldStart[numSentences] = goldEnd;
+                sentStart[numSentences++] = end;
+                end += n;
+                goldEnd += numGold;
+            }
+            sentStart[numSentences] = end;
+            goldStart[numSentences] = goldEnd;
+        }
+        if (numSentences < folds) throw new IllegalArgumentException("Only " + numSentences + " sentences for " + folds + " folds");
+    }
+
+    /**
+     * @param fold Fold number
+     * @return Index of the fold's first sentence; each fold is a contiguous block of sentences
+     */
+    int foldStart(int fold) {
+        return (int) ((long) fold * numSentences / folds);
+    }
+
+    /**
+     * Train and evaluate every fold concurrently
+     *
+     * @param U       Unseen word penalty of the fold models
+     * @param options Pruning settings for decoding the held-out sentences
+     * @param pool    Pool to count, train and evaluate on
+     * @return Evaluation counts of each fold
+     * @throws InterruptedException If interrupted while waiting for the folds
+     * @throws ExecutionException   If a fold failed
+     */
+    public EvalStats[] run(double U, DecodeOptions options, ExecutorService pool) throws InterruptedException, ExecutionException {
+        //count each fold once, and add the folds up into the counts of the whole corpus
+        if (foldCounts == null) {
+            List<Callable<CountTable>> counting = new ArrayList<>();
+            for (int f = 0; f < folds; f++) {
+                int fold = f;
+                counting.add(() -> count(foldStart(fold), foldStart(fold + 1)));
+            }
+            CountTable[] counted = new CountTable[folds];
+            List<Future<CountTable>> done = pool.invokeAll(counting);
+            for (int f = 0; f < folds; f++) counted[f] = done.get(f).get();
+            CountTable total = new CountTable(tags, words);
+            for (CountTable counts : counted) total.add(counts);
+            foldCounts = counted;
+            totalCounts = total;
+        }
+        //train every fold on the rest of the corpus and evaluate it on its own sentences
+        List<Callable<EvalStats>> evaluating = new ArrayList<>();
+        for (int f = 0; f < folds; f++) {
+            int fold = f;
+            evaluating.add(() -> evaluate(fold, U, options));
+        }
+        EvalStats[] stats = new EvalStats[folds];
+        List<Future<EvalStats>> done = pool.invokeAll(evaluating);
+        for (int f = 0; f < folds; f++) stats[f] = done.get(f).get();
+        return stats;
+    }
+
+    /**
+     * Count a range of sentences
+     *
+     * @param from Index of the first sentence
+     * @param to   Index just past the last sentence
+     * @return The range's counts, over the corpus's vocabularies
+     */
+    private CountTable count(int from, int to) {
+        CountTable counts = new CountTable(tags, words);
+        int[] sentence = new int[32], sentenceTags = new int[32];
+        for (int s = from; s < to; s++) {
+            int start = sentStart[s], n = sentStart[s + 1] - start;
+            if (sentence.length < n) {
+                sentence = new int[n * 2];
+                sentenceTags = new int[n * 2];
+            }
+            System.arraycopy(wordIds, start, sentence, 0, n);
+            System.arraycopy(tagIds, start, sentenceTags, 0, n);
+            counts.addSentence(sentence, sentenceTags, n, n);
+        }
+        return counts;
+    }
+
+    /**
+     * Train a fold's model on every other fold and evaluate it on the fold's sentences
+     *
+     * @param fold    Fold number
+     * @param U       Unseen word penalty
+     * @param options Pruning settings for decoding
+     * @return The fold's evaluation counts
+     */
+    private EvalStats evaluate(int fold, double U, DecodeOptions options) {
+        CountTable training = totalCounts.copy();
+        training.subtract(foldCounts[fold]);
+        int[] wordMap = new int[words.size()];
+        CompiledHMM model = CompiledHMM.compile(training, U, wordMap);
+        ViterbiDecoder decoder = new ViterbiDecoder(model);
+        EvalStats stats = new EvalStats(model.numTags);
+        int[] sentence = new int[32], correct = new int[32], predicted = new int[32];
+        for (int s = foldStart(fold); s < foldStart(fold + 1); s++) {
+            int start = sentStart[s], n = sentStart[s + 1] - start;
+            int gold = goldStart[s], numGold = goldStart[s + 1] - gold;
+            if (sentence.length < n) {
+                sentence = new int[n * 2];
+                predicted = new int[n * 2];
+            }
+            if (correct.length < numGold) correct = new int[numGold * 2];
+            //words only seen in this fold are unseen to its model, tags keep their IDs
+            for (int i = 0; i < n; i++) sentence[i] = wordMap[wordIds[start + i]];
+            System.arraycopy(goldIds, gold, correct, 0, numGold);
+            int length = decoder.decode(sentence, n, predicted, options);
+            stats.add(sentence, n, correct, numGold, predicted, length);
+        }
+        return stats;
+    }
+
+    /**
+     * Cross-validate a pair of training files for each given value of U and print per-fold and overall accuracy
+     *
+     * @param args Command-line arguments, see the class comment
+     * @throws Exception Possible IOException when reading, or a failure of a fold
+     */
+    public static void main(String[] args) throws Exception {
+        String usage = "Usage: java CrossValidator wordFile tagFile [--folds N] [--U value,value,...] [--threads N]";
+        if (args.length < 2) HMM.exitUsage("No training files given", usage);
+        int folds = 10, threads = Runtime.getRuntime().availableProcessors();
+        String[] penalties = {"-100"};
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--folds":
+                        HMM.requireValues(args, i, 1, usage);
+                        folds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--U":
+                        HMM.requireValues(args, i, 1, usage);
+                        penalties = args[++i].split(",");
+                        for (String penalty : penalties) Double.parseDouble(penalty);
+                        break;
+                    case "--threads":
+                        HMM.requireValues(args, i, 1, usage);
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        HMM.exitUsage("Unknown option " + args[i], usage);
+                }
+            }
+        } catch (NumberFormatException e) {
+            HMM.exitUsage("Not a number: " + e.getMessage(), usage);
+        }
+        if (folds < 2 || threads < 1) HMM.exitUsage("Need at least 2 folds and 1 thread", usage);
+        long start = System.nanoTime();
+        CrossValidator validator = new CrossValidator(args[0], args[1], folds);
+        System.out.printf("Read %,d sentences, %,d words, %d tags in %.2f s%n", validator.numSentences, validator.words.size(),
+                validator.tags.size() - 1, (System.nanoTime() - start) / 1e9);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (String penalty : penalties) {
+                start = System.nanoTime();
+                EvalStats[] stats = validator.run(Double.parseDouble(penalty), DecodeOptions.EXHAUSTIVE, pool);
+                EvalStats total = new EvalStats(stats[0].numTags);
+                StringBuilder sb = new StringBuilder();
+                for (EvalStats fold : stats) {
+                    total.merge(fold);
+                    sb.append(String.format(" %.4f", (double) fold.good() / Math.max(fold.good() + fold.bad(), 1)));
+                }
+                System.out.printf("U=%s: accuracy %.4f (%d/%d), folds%s, in %.2f s%n", penalty,
+                        (double) total.good() / Math.max(total.good() + total.bad(), 1), total.good(), total.good() + total.bad(),
+                        sb, (System.nanoTime() - start) / 1e9);
+                if (total.mismatched > 0) System.out.println("Sentences whose number of tags differs from their number of words: " + total.mismatched);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
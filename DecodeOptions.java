@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Immutable settings for a single ViterbiDecoder call. The default (EXHAUSTIVE) expands every observed transition out
+ * of every reachable state, exactly like HMM.viterbi, while the tag dictionary and beam settings trade some accuracy
+ * for fewer states per word
+ */
+public class DecodeOptions {
+    static final DecodeOptions EXHAUSTIVE = new DecodeOptions(false, null, 0, Double.POSITIVE_INFINITY);  //no pruning at all
+
+    final boolean tagDictionary;    //for words seen in training, only expand the tags that emitted them
+    final String[] oovTags;         //tags expanded for unseen words when tagDictionary is on, null for every tag
+    final int beamWidth;            //most states kept per word, 0 for no limit
+    final double beamThreshold;     //states scoring more than this below the best state at a word are dropped
+
+    /**
+     * Construct options with the given settings
+     */
+    private DecodeOptions(boolean tagDictionary, String[] oovTags, int beamWidth, double beamThreshold) {
+        this.tagDictionary = tagDictionary;
+        this.oovTags = oovTags;
+        this.beamWidth = beamWidth;
+        this.beamThreshold = beamThreshold;
+    }
+
+    /**
+     * @return Whether these options prune states with a beam
+     */
+    boolean beam() {
+        return beamWidth > 0 || beamThreshold != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param on Whether to restrict the states of seen words to the tags that emitted them in training
+     * @return Copy of these options with tag-dictionary pruning turned on or off
+     */
+    public DecodeOptions withTagDictionary(boolean on) {
+        return new DecodeOptions(on, oovTags, beamWidth, beamThreshold);
+    }
+
+    /**
+     * @param tags Tags to try for words never seen in training (e.g. only the open-class tags), or null for every tag
+     * @return Copy of these options with the given fallback tags for unseen words
+     */
+    public DecodeOptions withOOVTags(String... tags) {
+        return new DecodeOptions(tagDictionary, tags == null ? null : Arrays.copyOf(tags, tags.length), beamWidth, beamThreshold);
+    }
+
+    /**
+     * @param width Most states to keep at each word, or 0 for no limit
+     * @return Copy of these options with the given beam width
+     */
+    public DecodeOptions withBeamWidth(int width) {
+        if (width < 0) throw new IllegalArgumentException("Beam width must not be negative: " + width);
+        return new DecodeOptions(tagDictionary, oovTags, width, beamThreshold);
+    }
+
+    /**
+     * @param threshold How far (in log score) below the best state at a word a state may fall before it is dropped,
+     *                  or POSITIVE_INFINITY for no threshold
+     * @return Copy of these options with the given beam threshold
+     */
+    public DecodeOptions withBeamThreshold(double threshold) {
+        if (!(threshold >= 0)) throw new IllegalArgumentException("Beam threshold must not be negative: " + threshold);
+        return new DecodeOptions(tagDictionary, oovTags, beamWidth, threshold);
+    }
+}
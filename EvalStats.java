@@ -0,0 +1,199 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Evaluation counts over a CompiledHMM's tag IDs: a full correct-tag x predicted-tag confusion matrix in one flat
+ * array, plus hits and totals split by whether the word was seen in training. Each evaluating thread fills its own
+ * instance, and the instances are merged at the end, so counting never contends
+ */
+public class EvalStats {
+    final int numTags;          //tag IDs of the model, the extra index numTags stands for "none"
+    final int size;             //row length of confusion, numTags + 1
+    final long[] confusion;     //counts in form [correct tag * size + predicted tag], "none" for unknown or missing tags
+    long knownGood, knownTotal;     //hits and tags scored on words seen in training
+    long unknownGood, unknownTotal; //hits and tags scored on words never seen in training (or missing words)
+    long sentences;             //sentences scored
+    long mismatched;            //sentences scored whose number of correct tags is not their number of words
+
+    /**
+     * Construct empty counts
+     *
+     * @param numTags Number of tag IDs of the model
+     */
+    public EvalStats(int numTags) {
+        this.numTags = numTags;
+        size = numTags + 1;
+        confusion = new long[size * size];
+    }
+
+    /**
+     * Score one sentence
+     *
+     * @param words     Word IDs of the sentence, -1 for words never seen in training
+     * @param numWords  Number of words
+     * @param correct   Correct tag IDs, -1 for tags the model has never seen
+     * @param numTags   Number of correct tags, each of which is scored; a number other than numWords counts as a mismatch
+     * @param predicted Predicted tag IDs
+     * @param length    Number of predicted tags, 0 if no tag sequence could produce the sentence
+     */
+    public void add(int[] words, int numWords, int[] correct, int numTags, int[] predicted, int length) {
+        sentences++;
+        if (numTags != numWords) mismatched++;
+        for (int i = 0; i < numTags; i++) {
+            int gold = correct[i] < 0 ? this.numTags : correct[i];
+            int guess = i < length ? predicted[i] : this.numTags;
+            confusion[gold * size + guess]++;
+            //a hit needs a real tag on both sides, "none" never matches "none"
+            int hit = gold == guess && gold != this.numTags ? 1 : 0;
+            if (i < numWords && words[i] >= 0) {
+                knownGood += hit;
+                knownTotal++;
+            } else {
+                unknownGood += hit;
+                unknownTotal++;
+            }
+        }
+    }
+
+    /**
+     * Add every count of another instance into this one
+     *
+     * @param other Counts over the same model, left unchanged
+     */
+    public void merge(EvalStats other) {
+        for (int i = 0; i < confusion.length; i++) confusion[i] += other.confusion[i];
+        knownGood += other.knownGood;
+        knownTotal += other.knownTotal;
+        unknownGood += other.unknownGood;
+        unknownTotal += other.unknownTotal;
+        sentences += other.sentences;
+        mismatched += other.mismatched;
+    }
+
+    /**
+     * Reset every count to 0
+     */
+    public void clear() {
+        Arrays.fill(confusion, 0);
+        knownGood = knownTotal = unknownGood = unknownTotal = sentences = mismatched = 0;
+    }
+
+    /**
+     * @return Number of tags predicted correctly
+     */
+    public long good() {
+        return knownGood + unknownGood;
+    }
+
+    /**
+     * @return Number of tags predicted incorrectly
+     */
+    public long bad() {
+        return knownTotal + unknownTotal - good();
+    }
+
+    /**
+     * @param tag Tag ID, or numTags for "none"
+     * @return How often the tag was the correct one
+     */
+    public long correctCount(int tag) {
+        long total = 0;
+        for (int guess = 0; guess < size; guess++) total += confusion[tag * size + guess];
+        return total;
+    }
+
+    /**
+     * @param tag Tag ID, or numTags for "none"
+     * @return How often the tag was predicted
+     */
+    public long predictedCount(int tag) {
+        long total = 0;
+        for (int gold = 0; gold < size; gold++) total += confusion[gold * size + tag];
+        return total;
+    }
+
+    /**
+     * @param tag Tag ID
+     * @return Fraction of the tag's predictions that were correct, 0 if it was never predicted
+     */
+    public double precision(int tag) {
+        long predicted = predictedCount(tag);
+        return predicted == 0 ? 0 : (double) confusion[tag * size + tag] / predicted;
+    }
+
+    /**
+     * @param tag Tag ID
+     * @return Fraction of the tag's occurrences that were predicted, 0 if it never occurred
+     */
+    public double recall(int tag) {
+        long correct = correctCount(tag);
+        return correct == 0 ? 0 : (double) confusion[tag * size + tag] / correct;
+    }
+
+    /**
+     * @param tag Tag ID
+     * @return Harmonic mean of the tag's precision and recall
+     */
+    public double f1(int tag) {
+        double p = precision(tag), r = recall(tag);
+        return p + r == 0 ? 0 : 2 * p * r / (p + r);
+    }
+
+    /**
+     * Print accuracy overall and on known and unknown words, per-tag precision/recall/F1, and the confusion matrix,
+     * leaving out tags that never occurred and were never predicted
+     *
+     * @param model Model whose tag names to print
+     * @param out   Stream to print to
+     */
+    public void print(CompiledHMM model, PrintStream out) {
+        long total = knownTotal + unknownTotal;
+        out.printf("Accuracy: %.4f (%d/%d)   known words: %.4f (%d/%d)   unknown words: %.4f (%d/%d)%n",
+                ratio(good(), total), good(), total, ratio(knownGood, knownTotal), knownGood, knownTotal,
+                ratio(unknownGood, unknownTotal), unknownGood, unknownTotal);
+        if (mismatched > 0) out.printf("Sentences whose number of tags differs from their number of words: %d%n", mismatched);
+        //tags worth a row and a column
+        int[] shown = new int[size];
+        int numShown = 0, width = 6;
+        for (int t = 0; t < size; t++) {
+            if (correctCount(t) == 0 && predictedCount(t) == 0) continue;
+            shown[numShown++] = t;
+            width = Math.max(width, name(model, t).length() + 1);
+        }
+        out.printf("%-" + width + "s %10s %10s %10s %10s%n", "tag", "precision", "recall", "f1", "count");
+        for (int k = 0; k < numShown; k++) {
+            int t = shown[k];
+            if (t == numTags) continue;
+            out.printf("%-" + width + "s %10.4f %10.4f %10.4f %10d%n", name(model, t), precision(t), recall(t), f1(t), correctCount(t));
+        }
+        //rows are correct tags, columns predicted tags
+        out.println("Confusion matrix (rows correct, columns predicted):");
+        int cell = width;
+        for (int k = 0; k < numShown; k++) cell = Math.max(cell, Long.toString(correctCount(shown[k])).length() + 1);
+        StringBuilder sb = new StringBuilder(String.format("%-" + width + "s", ""));
+        for (int k = 0; k < numShown; k++) sb.append(String.format("%" + cell + "s", name(model, shown[k])));
+        out.println(sb);
+        for (int row = 0; row < numShown; row++) {
+            sb.setLength(0);
+            sb.append(String.format("%-" + width + "s", name(model, shown[row])));
+            for (int col = 0; col < numShown; col++) sb.append(String.format("%" + cell + "d", confusion[shown[row] * size + shown[col]]));
+            out.println(sb);
+        }
+    }
+
+    /**
+     * @param model Model whose tag names to use
+     * @param tag   Tag ID, or numTags for "none"
+     * @return Name to print for the tag
+     */
+    private String name(CompiledHMM model, int tag) {
+        return tag == numTags ? "(none)" : model.tagName(tag);
+    }
+
+    /**
+     * @return a / b, or 0 if b is 0
+     */
+    private static double ratio(long a, long b) {
+        return b == 0 ? 0 : (double) a / b;
+    }
+}
@@ -0,0 +1,315 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Parallel evaluation of a CompiledHMM against a pair of test files. The reading thread cuts the files into numbered
+ * batches of line pairs and hands them to a worker pool; each worker decodes its batch with its own decoder, scores
+ * it into its own EvalStats, and puts the batch's tagged output into a ReorderBuffer, from which the
+ * reading thread prints the batches back in input order. No two threads ever write the same counter. Each evaluate
+ * call borrows its counters from a pool of its own and merges them at the end, so nothing is left behind on the
+ * workers, and a failed call never leaks counts into the next one. Per-sentence output can be switched off entirely,
+ * leaving only the metrics and throughput figures
+ */
+public class Evaluator {
+    final CompiledHMM model;        //model being evaluated
+    final ExecutorService pool;     //workers decoding the batches
+    DecodeOptions options = DecodeOptions.EXHAUSTIVE;   //pruning settings for every sentence
+    static final int BATCH_LINES = 1 << 9;      //line pairs per batch handed to a worker
+    static final int WINDOW = 64;               //batches that may be in flight or waiting to print at once
+    private final ConcurrentLinkedQueue<ViterbiDecoder> decoders = new ConcurrentLinkedQueue<>();  //idle decoders of model, at most one per worker
+
+    /**
+     * Counts of the batches one worker has scored, borrowed for a batch at a time from its evaluate call's tallies
+     */
+    static class Tally {
+        final EvalStats stats;      //confusion matrix and hit counts of the batches scored into this tally
+        final Tokenizer tagTokenizer = new Tokenizer(false);    //turns test tag lines into the model's tag IDs
+        int[] wordIds = new int[64];    //model word IDs of a compiled sentence
+        int[] tagIds = new int[64];     //model tag IDs of a compiled sentence's correct tags
+        int[] predicted = new int[64];  //predicted tag IDs of a compiled sentence
+
+        /**
+         * @param numTags Number of tag IDs of the model
+         */
+        Tally(int numTags) {
+            stats = new EvalStats(numTags);
+        }
+
+        /**
+         * Grow the ID buffers to hold at least the given number of IDs
+         *
+         * @param n Number of IDs needed
+         */
+        void fit(int n) {
+            if (n <= wordIds.length) return;
+            int length = Math.max(n, wordIds.length * 2);
+            wordIds = new int[length];
+            tagIds = new int[length];
+            predicted = new int[length];
+        }
+    }
+
+    /**
+     * Construct an evaluator
+     *
+     * @param model Model to evaluate
+     * @param pool  Workers to decode on
+     */
+    public Evaluator(CompiledHMM model, ExecutorService pool) {
+        this.model = model;
+        this.pool = pool;
+    }
+
+    /**
+     * Decode every sentence of the test files and write each with its predicted tags in file order as testOnFiles
+     * prints them, then report how many tags were predicted correctly and incorrectly and how fast
+     *
+     * @param wordFile Test file of words/sentences, plain or gzipped
+     * @param tagFile  Test file of correct tags, plain or gzipped
+     * @param out      Writer for the per-sentence output, flushed but not closed, or null to skip it
+     * @param report   Stream to print the metrics and throughput to
+     * @return Counts of every worker merged together
+     * @throws IOException Possible IOException when reading test files or writing output
+     */
+    public EvalStats evaluate(String wordFile, String tagFile, Writer out, PrintStream report) throws IOException {
+        long start = System.nanoTime();
+        ReorderBuffer<String> printed = new ReorderBuffer<>(WINDOW);
+        ConcurrentLinkedQueue<Tally> tallies = new ConcurrentLinkedQueue<>();
+        try (BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+             BufferedReader tagIn = PrefetchInputStream.reader(tagFile)) {
+            long seq = 0;
+            String[] wordLines = new String[BATCH_LINES], tagLines = new String[BATCH_LINES];
+            int n = 0;
+            String wordLine;
+            //a missing tag line is scored as an empty one
+            while ((wordLine = wordIn.readLine()) != null) {
+                String tagLine = tagIn.readLine();
+                wordLines[n] = wordLine;
+                tagLines[n++] = tagLine == null ? "" : tagLine;
+                if (n == BATCH_LINES) {
+                    //print the oldest batch first if the window is full, so reading never runs far ahead of printing
+                    if (seq >= WINDOW) write(out, printed.take());
+                    submit(seq++, wordLines, tagLines, n, out != null, tallies, printed);
+                    wordLines = new String[BATCH_LINES];
+                    tagLines = new String[BATCH_LINES];
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                if (seq >= WINDOW) write(out, printed.take());
+                submit(seq++, wordLines, tagLines, n, out != null, tallies, printed);
+            }
+            //print whatever is still outstanding
+            while (printed.next() < seq) write(out, printed.take());
+            if (out != null) out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while evaluating");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Evaluation worker failed", e.getCause());
+        }
+        return finish(start, tallies, report);
+    }
+
+    /**
+     * Decode every sentence of a compiled test corpus and write each with its predicted tags in corpus order, then
+     * report as evaluate does. Sentences are already int IDs, so no text is read or tokenized; each corpus ID is
+     * translated to the model's once for the whole run. The printed sentences are the corpus's lowercased tokens, and
+     * the counts are the same as for the files the corpus was compiled from, except on tag lines with leading
+     * whitespace, which the corpus holds trimmed as training reads them
+     *
+     * @param corpus Compiled pair of test files
+     * @param out    Writer for the per-sentence output, flushed but not closed, or null to skip it
+     * @param report Stream to print the metrics and throughput to
+     * @return Counts of every worker merged together
+     * @throws IOException Possible IOException when writing output
+     */
+    public EvalStats evaluate(CompiledCorpus corpus, Writer out, PrintStream report) throws IOException {
+        long start = System.nanoTime();
+        int[] wordMap = CompiledCorpus.idMap(model.words, corpus.words);
+        int[] tagMap = CompiledCorpus.idMap(model.tags, corpus.tags);
+        ReorderBuffer<String> printed = new ReorderBuffer<>(WINDOW);
+        ConcurrentLinkedQueue<Tally> tallies = new ConcurrentLinkedQueue<>();
+        try {
+            long seq = 0;
+            for (int from = 0; from < corpus.size(); from += BATCH_LINES) {
+                int batchFrom = from, batchTo = Math.min(from + BATCH_LINES, corpus.size());
+                long batch = seq++;
+                if (batch >= WINDOW) write(out, printed.take());
+                pool.execute(() -> {
+                    try {
+                        printed.put(batch, decodeBatch(corpus, batchFrom, batchTo, wordMap, tagMap, out != null, tallies));
+                    } catch (Throwable e) {
+                        printed.fail(e);
+                    }
+                });
+            }
+            while (printed.next() < seq) write(out, printed.take());
+            if (out != null) out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while evaluating");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Evaluation worker failed", e.getCause());
+        }
+        return finish(start, tallies, report);
+    }
+
+    /**
+     * Merge the tallies of an evaluate call once all its batches are done, and report the results and throughput
+     *
+     * @param start   System.nanoTime() when the evaluation started
+     * @param tallies Tallies of the call's batches
+     * @param report  Stream to print the metrics and throughput to
+     * @return Counts of every batch merged together
+     */
+    private EvalStats finish(long start, ConcurrentLinkedQueue<Tally> tallies, PrintStream report) {
+        //every batch has been printed, so every tally is back in tallies
+        EvalStats stats = new EvalStats(model.numTags);
+        for (Tally counts : tallies) stats.merge(counts.stats);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long good = stats.good(), bad = stats.bad();
+        report.println("Tagged correctly: " + good + "\tTagged Incorrectly: " + bad);
+        if (stats.mismatched > 0) report.println("Sentences whose number of tags differs from their number of words: " + stats.mismatched);
+        report.printf("Evaluated %,d sentences (%,d tags) in %.2f s: %,.0f sentences/s, %,.0f tags/s%n",
+                stats.sentences, good + bad, seconds, stats.sentences / seconds, (good + bad) / seconds);
+        return stats;
+    }
+
+    /**
+     * Write a batch's output
+     *
+     * @param out   Writer for the per-sentence output, or null to skip it
+     * @param batch The batch's output
+     * @throws IOException Possible IOException when writing
+     */
+    private static void write(Writer out, String batch) throws IOException {
+        if (out != null) out.write(batch);
+    }
+
+    /**
+     * Hand a batch to the pool
+     *
+     * @param seq       Sequence number of the batch
+     * @param wordLines Test sentences of the batch
+     * @param tagLines  Matching correct tags
+     * @param n         Number of line pairs in the batch
+     * @param print     Whether to build the batch's output
+     * @param tallies   Tallies of the evaluate call to count into
+     * @param printed   Buffer to put the batch's output in
+     */
+    private void submit(long seq, String[] wordLines, String[] tagLines, int n, boolean print, ConcurrentLinkedQueue<Tally> tallies,
+                        ReorderBuffer<String> printed) {
+        pool.execute(() -> {
+            try {
+                printed.put(seq, decodeBatch(wordLines, tagLines, n, print, tallies));
+            } catch (Throwable e) {
+                printed.fail(e);
+            }
+        });
+    }
+
+    /**
+     * Decode and score a batch on the calling worker thread
+     *
+     * @param wordLines Test sentences of the batch
+     * @param tagLines  Matching correct tags
+     * @param n         Number of line pairs in the batch
+     * @param print     Whether to build the batch's output
+     * @param tallies   Tallies of the evaluate call to count into
+     * @return The batch's output, each sentence followed by its predicted tags, or "" if not printing
+     */
+    private String decodeBatch(String[] wordLines, String[] tagLines, int n, boolean print, ConcurrentLinkedQueue<Tally> tallies) {
+        ViterbiDecoder decoder = borrow();
+        Tally counts = borrow(tallies);
+        if (!print) {
+            for (int s = 0; s < n; s++) score(decoder, decoder.decodeLine(wordLines[s], options), tagLines[s], counts);
+            decoders.add(decoder);
+            tallies.add(counts);
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < n; s++) {
+            int length = decoder.decodeLine(wordLines[s], options);
+            int[] predicted = decoder.tags();
+            sb.append('\n').append(wordLines[s]).append('\n').append("=> ");
+            for (int i = 0; i < length; i++) sb.append(i > 0 ? " " : "").append(model.tagName(predicted[i]));
+            sb.append('\n');
+            score(decoder, length, tagLines[s], counts);
+        }
+        decoders.add(decoder);
+        tallies.add(counts);
+        return sb.toString();
+    }
+
+    /**
+     * Decode and score a range of a compiled corpus on the calling worker thread
+     *
+     * @param corpus  Compiled test corpus
+     * @param from    First sentence of the batch
+     * @param to      Sentence just past the last of the batch
+     * @param wordMap Model word ID of every corpus word ID
+     * @param tagMap  Model tag ID of every corpus tag ID
+     * @param print   Whether to build the batch's output
+     * @param tallies Tallies of the evaluate call to count into
+     * @return The batch's output, each sentence followed by its predicted tags, or "" if not printing
+     */
+    private String decodeBatch(CompiledCorpus corpus, int from, int to, int[] wordMap, int[] tagMap, boolean print,
+                               ConcurrentLinkedQueue<Tally> tallies) {
+        ViterbiDecoder decoder = borrow();
+        Tally counts = borrow(tallies);
+        StringBuilder sb = new StringBuilder();
+        for (int s = from; s < to; s++) {
+            int w = corpus.wordStart.get(s), n = corpus.wordStart.get(s + 1) - w;
+            int t = corpus.tagStart.get(s), numTags = corpus.tagStart.get(s + 1) - t;
+            counts.fit(Math.max(n, numTags));
+            for (int i = 0; i < n; i++) counts.wordIds[i] = wordMap[corpus.wordIds.get(w + i)];
+            for (int i = 0; i < numTags; i++) counts.tagIds[i] = tagMap[corpus.tagIds.get(t + i)];
+            int length = decoder.decode(counts.wordIds, n, counts.predicted, options);
+            counts.stats.add(counts.wordIds, n, counts.tagIds, numTags, counts.predicted, length);
+            if (!print) continue;
+            sb.append('\n');
+            for (int i = 0; i < n; i++) sb.append(i > 0 ? " " : "").append(corpus.words.get(corpus.wordIds.get(w + i)));
+            sb.append('\n').append("=> ");
+            for (int i = 0; i < length; i++) sb.append(i > 0 ? " " : "").append(model.tagName(counts.predicted[i]));
+            sb.append('\n');
+        }
+        decoders.add(decoder);
+        tallies.add(counts);
+        return sb.toString();
+    }
+
+    /**
+     * @return An idle decoder of the model, created if there is none; hand it back to decoders once done
+     */
+    private ViterbiDecoder borrow() {
+        ViterbiDecoder decoder = decoders.poll();
+        return decoder != null ? decoder : new ViterbiDecoder(model);
+    }
+
+    /**
+     * @param tallies Tallies of an evaluate call
+     * @return An idle tally of the call, created if there is none; hand it back to tallies once done
+     */
+    private Tally borrow(ConcurrentLinkedQueue<Tally> tallies) {
+        Tally counts = tallies.poll();
+        return counts != null ? counts : new Tally(model.numTags);
+    }
+
+    /**
+     * Score the decoder's last prediction against the correct tags
+     *
+     * @param decoder Decoder holding the prediction
+     * @param length  Number of predicted tags
+     * @param tagLine Line of correct tags
+     * @param counts  Tally to count into
+     */
+    private void score(ViterbiDecoder decoder, int length, String tagLine, Tally counts) {
+        //score every correct tag, split as testOnFiles splits them; tags the model never saw, or past the end of the
+        //prediction, are misses
+        int numTags = counts.tagTokenizer.split(tagLine, model.tags);
+        counts.stats.add(decoder.words(), decoder.wordCount(), counts.tagTokenizer.ids(), numTags, decoder.tags(), length);
+    }
+}
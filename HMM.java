@@ -1,5 +1,16 @@
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Builds a HMM from file training data and runs Viterbi on either user input or another pair of test files to tag the parts of speech of the test words
@@ -9,10 +20,14 @@ import java.util.*;
 public class HMM {
     HashMap<String, HashMap<String, Double>> observationScores; //scores for transitions in form {tag -> {observed word -> score}}
     HashMap<String, HashMap<String, Double>> transScores;   //scores for transitions in form {tag -> {transition tags -> score}}
-    BufferedReader wordIn;      //file reader for sentence train file
-    BufferedReader tagIn;       //file reader for tag train file
+    HashMap<String, ArrayList<String>> tagDictionary;       //tags each word was observed with in form {observed word -> [tags]}
+    HashMap<String, ObjectLongMap<String>> observationCounts;   //raw training counts in form {tag -> {observed word -> count}}, until normalized
+    HashMap<String, ObjectLongMap<String>> transCounts;         //raw training counts in form {tag -> {transition tags -> count}}, until normalized
     final double U = -100.0;    //unseen word penalty
     static Scanner scan = new Scanner(System.in);   //console input reading scanner
+    static final int BATCH_LINES = 1 << 16;         //line pairs read per parallel counting batch
+    static final int TASK_LINES = 1 << 10;          //line pairs below which a counting task stops splitting
+    static final String TAG_USAGE = "Usage: java HMM --tag (--model modelFile | --train wordFile tagFile) [--input file] [--workers N] [--window N]";
 
     /**
      * Construct a HMM object that will instantiate the Maps representing the HMM
@@ -20,19 +35,22 @@ public class HMM {
     public HMM() {
         observationScores = new HashMap<>();
         transScores = new HashMap<>();
+        tagDictionary = new HashMap<>();
+        observationCounts = new HashMap<>();
+        transCounts = new HashMap<>();
     }
 
     /**
      * Parse the pair of training files and build a HMM from them
      *
-     * @param wordFile Path to word file
-     * @param tagFile  Path to tag file
+     * @param wordFile Path to word file, plain or gzipped
+     * @param tagFile  Path to tag file, plain or gzipped
      * @throws IOException Possible IOException when reading
      */
     public void buildHMM(String wordFile, String tagFile) throws IOException {
         //create readers for the training files
-        wordIn = new BufferedReader(new FileReader(wordFile));
-        tagIn = new BufferedReader(new FileReader(tagFile));
+        BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+        BufferedReader tagIn = PrefetchInputStream.reader(tagFile);
         try {
             String[] wordArray, tagArray;
             String wordLine, tagLine;
@@ -53,6 +71,76 @@ public class HMM {
         }
     }
 
+    /**
+     * Parse the pair of training files and build a HMM from them, counting batches of sentences in parallel on a
+     * fork-join pool. Every worker thread counts into its own CountTable, kept only for this build so no table outlives
+     * it in the pool's threads, and the tables are merged before the scores are normalized. The scores are the same as
+     * buildHMM(wordFile, tagFile) gives; only the order the maps iterate them in may differ, which decoding ignores
+     *
+     * @param wordFile Path to word file, plain or gzipped
+     * @param tagFile  Path to tag file, plain or gzipped
+     * @param pool     Pool to count on
+     * @throws IOException Possible IOException when reading
+     */
+    public void buildHMM(String wordFile, String tagFile, ForkJoinPool pool) throws IOException {
+        ConcurrentHashMap<Thread, CountTable> tables = new ConcurrentHashMap<>();   //each worker thread's table, for this build only
+        String[] wordLines = new String[BATCH_LINES], tagLines = new String[BATCH_LINES];
+        try (BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+             BufferedReader tagIn = PrefetchInputStream.reader(tagFile)) {
+            String wordLine, tagLine;
+            int n = 0;
+            //read a batch of line pairs, then count it in parallel before reading on
+            while ((wordLine = wordIn.readLine()) != null && (tagLine = tagIn.readLine()) != null) {
+                wordLines[n] = wordLine;
+                tagLines[n++] = tagLine;
+                if (n == BATCH_LINES) {
+                    pool.invoke(new CountTask(wordLines, tagLines, 0, n, tables));
+                    n = 0;
+                }
+            }
+            if (n > 0) pool.invoke(new CountTask(wordLines, tagLines, 0, n, tables));
+        }
+        //merge the per-thread tables into the HMM and normalize as usual
+        for (CountTable counts : tables.values()) counts.addTo(this);
+        normalizeScores();
+    }
+
+    /**
+     * Build a HMM from a memory-mapped training corpus, counting byte ranges of it in parallel on a fork-join pool.
+     * Lines are tokenized straight from the mappings without decoding them into Strings, so for UTF-8 files the result
+     * is the same as buildHMM(wordFile, tagFile)
+     *
+     * @param corpus Mapped pair of training files
+     * @param pool   Pool to count on
+     */
+    public void buildHMM(MappedCorpus corpus, ForkJoinPool pool) {
+        ConcurrentHashMap<Thread, CountTable> tables = new ConcurrentHashMap<>();   //each worker thread's table, for this build only
+        //a few ranges per worker, so one slow range doesn't leave the others idle
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (MappedCorpus range : corpus.split(pool.getParallelism() * 4)) {
+            tasks.add(pool.submit(() -> {
+                CountTable counts = tables.computeIfAbsent(Thread.currentThread(), thread -> new CountTable());
+                MappedCorpus.Cursor pair = range.cursor();
+                while (pair.next()) counts.addSentence(pair.wordBuf, pair.wordFrom, pair.wordTo, pair.tagBuf, pair.tagFrom, pair.tagTo);
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) task.join();
+        //merge the per-thread tables into the HMM and normalize as usual
+        for (CountTable counts : tables.values()) counts.addTo(this);
+        normalizeScores();
+    }
+
+    /**
+     * Build a HMM from a compiled corpus. Its sentences are already int IDs, so training only counts integers, then
+     * normalizes as usual; the result is the same as buildHMM on the files it was compiled from
+     *
+     * @param corpus Compiled pair of training files
+     */
+    public void buildHMM(CompiledCorpus corpus) {
+        corpus.count().addTo(this);
+        normalizeScores();
+    }
+
     /**
      * Creates the scores for the HMM observations and transitions
      *
@@ -86,13 +174,11 @@ public class HMM {
      * @param tag  Matching tag
      */
     public void markObservation(String word, String tag) {
+        ObjectLongMap<String> counts = observationCounts.get(tag);
         //if we have never seen this tag before
-        if (!observationScores.containsKey(tag)) observationScores.put(tag, new HashMap<>());
-        //first time seeing tag -> word
-        if (!observationScores.get(tag).containsKey(word)) observationScores.get(tag).put(word, 0.0);
-        //increment the score of tag -> word
-        observationScores.get(tag).put(word, observationScores.get(tag).get(word) + 1);
-
+        if (counts == null) observationCounts.put(tag, counts = new ObjectLongMap<>());
+        //increment the count of tag -> word, starting it at 0 the first time
+        counts.add(word, 1);
     }
 
     /**
@@ -102,42 +188,59 @@ public class HMM {
      * @param nextTag Next tag
      */
     public void markTransition(String currTag, String nextTag) {
+        ObjectLongMap<String> counts = transCounts.get(currTag);
         //if we have never seen currTag before
-        if (!transScores.containsKey(currTag)) transScores.put(currTag, new HashMap<>());
-        //first time seeing curr tag -> next tag
-        if (!transScores.get(currTag).containsKey(nextTag)) transScores.get(currTag).put(nextTag, 0.0);
-        //increment the score of currTag -> nextTag
-        transScores.get(currTag).put(nextTag, transScores.get(currTag).get(nextTag) + 1);
+        if (counts == null) transCounts.put(currTag, counts = new ObjectLongMap<>());
+        //increment the count of currTag -> nextTag, starting it at 0 the first time
+        counts.add(nextTag, 1);
     }
 
     /**
-     * Normalize the scores as natural logs
+     * Normalize the raw counts into scores as natural logs, and index the tags each observed word was seen with
      */
     public void normalizeScores() {
+        tagDictionary.clear();
         //for every training tag that's been observed
-        for (String tag : observationScores.keySet()) {
+        for (String tag : observationCounts.keySet()) {
+            ObjectLongMap<String> counts = observationCounts.get(tag);
             //find how often we have observed this tag
-            double totalFreq = 0;
-            for (String word : observationScores.get(tag).keySet()) {
-                totalFreq += observationScores.get(tag).get(word);
-            }
+            long totalFreq = 0;
+            for (int i = 0; i < counts.size(); i++) totalFreq += counts.value(i);
             //for every word with this tag, normalize its score
-            for (String word : observationScores.get(tag).keySet()) {
-                observationScores.get(tag).put(word, Math.log((observationScores.get(tag).get(word)) / totalFreq));
+            if (!observationScores.containsKey(tag)) observationScores.put(tag, new HashMap<>());
+            for (int i = 0; i < counts.size(); i++) {
+                String word = counts.key(i);
+                observationScores.get(tag).put(word, Math.log((double) counts.value(i) / totalFreq));
+                //record that this word can be emitted by this tag
+                if (!tagDictionary.containsKey(word)) tagDictionary.put(word, new ArrayList<>());
+                tagDictionary.get(word).add(tag);
             }
         }
         //for every training tag we've observed
-        for (String tag : transScores.keySet()) {
+        for (String tag : transCounts.keySet()) {
+            ObjectLongMap<String> counts = transCounts.get(tag);
             //find how often the current tag has had an observed transition
-            double totalFreq = 0;
-            for (String nextTag : transScores.get(tag).keySet()) {
-                totalFreq += transScores.get(tag).get(nextTag);
-            }
+            long totalFreq = 0;
+            for (int i = 0; i < counts.size(); i++) totalFreq += counts.value(i);
             //for every tag the current tag has been observed transitioning to, normalize its score
-            for (String nextTag : transScores.get(tag).keySet()) {
-                transScores.get(tag).put(nextTag, Math.log((transScores.get(tag).get(nextTag)) / totalFreq));
+            if (!transScores.containsKey(tag)) transScores.put(tag, new HashMap<>());
+            for (int i = 0; i < counts.size(); i++) {
+                transScores.get(tag).put(counts.key(i), Math.log((double) counts.value(i) / totalFreq));
             }
         }
+        //the counts are now scores
+        observationCounts.clear();
+        transCounts.clear();
+    }
+
+    /**
+     * Compile the trained HMM into its integer-ID form for fast decoding. The result is an immutable snapshot: training
+     * this HMM further does not change it, and any number of threads may decode with it at once
+     *
+     * @return The compiled model
+     */
+    public CompiledHMM compile() {
+        return CompiledHMM.compile(this);
     }
 
     /**
@@ -166,16 +269,16 @@ public class HMM {
                     //for all possible states the current state could transition to based on observed training transitions between POS
                     for (String nextState : transScores.get(currState).keySet()) {
                         if (!nextStates.contains(nextState)) nextStates.add(nextState);
-                        double obsScore;
-                        try {
-                            obsScore = (observationScores.get(nextState).get(words[i]));
-                        } catch (NullPointerException e) {
-                            obsScore = U;
-                        }
+                        //score of nextState emitting this word, or the unseen word penalty if it never has
+                        HashMap<String, Double> emissions = observationScores.get(nextState);
+                        Double observed = emissions == null ? null : emissions.get(words[i]);
+                        double obsScore = observed == null ? U : observed;
                         //get its transition score to this next possible state
                         double nextScore = currScores.get(currState) + transScores.get(currState).get(nextState) + obsScore;
                         //if it is the highest score we have seen for this word, specifically for currTag -> nextPossibleTag, save it
-                        if (!nextScores.containsKey(nextState) || nextScores.get(nextState) < nextScore) {
+                        //(on a tie, the current state first by name wins, so the path never depends on map order)
+                        Double seen = nextScores.get(nextState);
+                        if (seen == null || seen < nextScore || (seen == nextScore && currState.compareTo(backPath.get(i).get(nextState)) < 0)) {
                             nextScores.put(nextState, nextScore);
                             backPath.get(i).put(nextState, currState);
                         }
@@ -186,12 +289,13 @@ public class HMM {
             currStates = nextStates;
             currScores = nextScores;
         }
-        //get the highest score of the final scores once we have read all the input words
+        //get the highest score of the final scores once we have read all the input words, the first by name among equals
         double maxScore = Integer.MIN_VALUE;
         String bestLastTag = "";
-        for (String tag : currScores.keySet()) {
-            if (currScores.get(tag) > maxScore) {
-                maxScore = currScores.get(tag);
+        for (String tag : currStates) {
+            double score = currScores.get(tag);
+            if (score > maxScore || (score == maxScore && tag.compareTo(bestLastTag) < 0)) {
+                maxScore = score;
                 bestLastTag = tag;
             }
         }
@@ -211,14 +315,14 @@ public class HMM {
     /**
      * Run Viterbi on test file and compare its score to the test files tags
      *
-     * @param wordFile Test file of words/sentences
-     * @param tagFile  Test file of correct tags
+     * @param wordFile Test file of words/sentences, plain or gzipped
+     * @param tagFile  Test file of correct tags, plain or gzipped
      * @throws IOException Possible IOException when reading test files
      */
     public void testOnFiles(String wordFile, String tagFile) throws IOException {
         //readers for test files
-        BufferedReader testIn = new BufferedReader(new FileReader(wordFile));
-        BufferedReader testTagIn = new BufferedReader(new FileReader(tagFile));
+        BufferedReader testIn = PrefetchInputStream.reader(wordFile);
+        BufferedReader testTagIn = PrefetchInputStream.reader(tagFile);
         try {
             String testLine;
             int good = 0, bad = 0;
@@ -248,6 +352,47 @@ public class HMM {
         }
     }
 
+    /**
+     * Run Viterbi on test file and compare its score to the test files tags, decoding batches of sentences in parallel
+     * on a pool. The output is printed in file order and is the same as testOnFiles(wordFile, tagFile)
+     *
+     * @param wordFile Test file of words/sentences, plain or gzipped
+     * @param tagFile  Test file of correct tags, plain or gzipped
+     * @param pool     Pool to decode on
+     * @throws IOException Possible IOException when reading test files
+     */
+    public void testOnFiles(String wordFile, String tagFile, ExecutorService pool) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        new Evaluator(compile(), pool).evaluate(wordFile, tagFile, out, System.out);
+    }
+
+    /**
+     * Run Viterbi on test file and compare its score to the test files tags in parallel on a pool, writing the tagged
+     * sentences to a file through a large buffer instead of the console, or skipping them entirely. Only the results,
+     * throughput figures and a per-tag report are printed
+     *
+     * @param wordFile Test file of words/sentences, plain or gzipped
+     * @param tagFile  Test file of correct tags, plain or gzipped
+     * @param pool     Pool to decode on
+     * @param outFile  File to write the tagged sentences to, or null to only report the results
+     * @throws IOException Possible IOException when reading test files or writing the output file
+     */
+    public void testOnFiles(String wordFile, String tagFile, ExecutorService pool, String outFile) throws IOException {
+        CompiledHMM model = compile();
+        Evaluator evaluator = new Evaluator(model, pool);
+        EvalStats stats;
+        if (outFile == null) stats = evaluator.evaluate(wordFile, tagFile, null, System.out);
+        else {
+            try (FileChannel channel = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 1 << 20)) {
+                stats = evaluator.evaluate(wordFile, tagFile, out, System.out);
+            }
+        }
+        //the detailed report: known/unknown accuracy, per-tag precision/recall/F1 and the confusion matrix
+        stats.print(model, System.out);
+    }
+
     /**
      * Run Viterbi built on training files on user-input sentences/words in the console
      */
@@ -272,10 +417,19 @@ public class HMM {
      *
      * Please change the path name variables for each file!
      *
-     * @param args Command-line arguments (ignored)
+     * With the --tag mode, runs headless instead: tags sentences from stdin (or a file, plain or gzipped) to stdout, one
+     * line of tags per line, in input order, on a pool of workers. Any other arguments are rejected with the usage
+     * java HMM --tag (--model modelFile | --train wordFile tagFile) [--input file] [--workers N] [--window N]
+     *
+     * @param args Command-line arguments, none for the interactive driver
      * @throws IOException Possible IOException when opening/reading files
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            if (args[0].equals("--tag")) tagPipeline(Arrays.copyOfRange(args, 1, args.length));
+            else exitUsage("Unknown mode " + args[0], TAG_USAGE);
+            return;
+        }
         //EDIT THESE FOR EACH NEW TRAINING/TESTING FILES
         String trainSentencesPath = "inputs/simple-train-sentences.txt";
         String trainTagsPath = "inputs/simple-train-tags.txt";
@@ -291,4 +445,120 @@ public class HMM {
         else hmm.testOnInput();
         scan.close();
     }
+
+    /**
+     * Run the headless tagging pipeline described at main
+     *
+     * @param args Command-line options after --tag
+     * @throws IOException Possible IOException when reading the model, training files or input, or writing the output
+     */
+    static void tagPipeline(String[] args) throws IOException {
+        CompiledHMM model = null;
+        String input = null;
+        int workers = Runtime.getRuntime().availableProcessors(), window = 64;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--model":
+                        requireValues(args, i, 1, TAG_USAGE);
+                        model = CompiledHMM.map(Paths.get(args[++i]));
+                        break;
+                    case "--train":
+                        requireValues(args, i, 2, TAG_USAGE);
+                        HMM hmm = new HMM();
+                        hmm.buildHMM(args[i + 1], args[i + 2]);
+                        model = hmm.compile();
+                        i += 2;
+                        break;
+                    case "--input":
+                        requireValues(args, i, 1, TAG_USAGE);
+                        input = args[++i];
+                        break;
+                    case "--workers":
+                        requireValues(args, i, 1, TAG_USAGE);
+                        workers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--window":
+                        requireValues(args, i, 1, TAG_USAGE);
+                        window = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        exitUsage("Unknown option " + args[i], TAG_USAGE);
+                }
+            }
+        } catch (NumberFormatException e) {
+            exitUsage("Not a number: " + e.getMessage(), TAG_USAGE);
+        }
+        if (model == null) exitUsage("No model given", TAG_USAGE);
+        if (workers < 1 || window < 1) exitUsage("Workers and window must be positive", TAG_USAGE);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        //a file is read like the training files, stdin as UTF-8
+        try (BufferedReader reader = input == null ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : PrefetchInputStream.reader(input)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+            new TagPipeline(model, pool, window).run(reader, out);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Check that an option is followed by as many values as it takes, exiting with the usage if it is not
+     *
+     * @param args   Command-line arguments
+     * @param i      Index of the option
+     * @param values Number of values the option takes
+     * @param usage  Usage line of the command
+     */
+    static void requireValues(String[] args, int i, int values, String usage) {
+        if (i + values >= args.length) exitUsage("Option " + args[i] + " takes " + values + (values == 1 ? " value" : " values"), usage);
+    }
+
+    /**
+     * Report bad command-line usage on stderr and exit with status 2
+     *
+     * @param problem What is wrong with the arguments
+     * @param usage   Usage line of the command
+     */
+    static void exitUsage(String problem, String usage) {
+        System.err.println(problem);
+        System.err.println(usage);
+        System.exit(2);
+    }
+
+    /**
+     * Fork-join task counting a range of training line pairs into the current worker thread's CountTable
+     */
+    static class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final String[] wordLines, tagLines;     //batch of training lines
+        final int from, to;                     //range of the batch this task counts
+        final ConcurrentHashMap<Thread, CountTable> tables;     //each worker thread's table
+
+        /**
+         * Construct a task counting line pairs from (inclusive) to to (exclusive) of the batch
+         */
+        CountTask(String[] wordLines, String[] tagLines, int from, int to, ConcurrentHashMap<Thread, CountTable> tables) {
+            this.wordLines = wordLines;
+            this.tagLines = tagLines;
+            this.from = from;
+            this.to = to;
+            this.tables = tables;
+        }
+
+        /**
+         * Count the range, splitting it across the pool first if it is large
+         */
+        @Override
+        protected void compute() {
+            //split in half until the range is small enough to count directly
+            if (to - from > TASK_LINES) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CountTask(wordLines, tagLines, from, mid, tables), new CountTask(wordLines, tagLines, mid, to, tables));
+                return;
+            }
+            CountTable counts = tables.computeIfAbsent(Thread.currentThread(), thread -> new CountTable());
+            for (int i = from; i < to; i++) counts.addSentence(wordLines[i], tagLines[i]);
+        }
+    }
 }
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Benchmark harness for training, decoding and evaluation, run against a generated corpus of configurable size.
+ * Each benchmark runs a number of untimed warmup iterations so the JIT settles, then timed iterations, and reports the
+ * mean time per operation with its spread, in the same spirit as JMH (which cannot host benchmarks against classes in
+ * the default package)
+ *
+ * Usage: java HMMBenchmark [--sentences N] [--tags N] [--vocab N] [--zipf S] [--warmup N] [--iterations N] [--filter substring]
+ * or, from the build: gradle benchmark -Pargs="[options]"
+ */
+public class HMMBenchmark {
+    int sentences = 20000;      //sentences in the generated training corpus
+    int numTags = 40;           //size of the generated tag set
+    int vocab = 20000;          //size of the generated vocabulary
+    double zipf = 1.0;          //Zipf exponent of the generated word distributions
+    int warmup = 3;             //untimed iterations per benchmark
+    int iterations = 5;         //timed iterations per benchmark
+    String filter = "";         //only run benchmarks whose name contains this
+    Path dir;                   //directory holding the generated corpus
+    CorpusGenerator generator;  //seeded model every benchmark corpus is drawn from
+    long sink;                  //consumes benchmark results so the JIT cannot drop the work
+
+    /**
+     * A benchmarked operation
+     */
+    interface Op {
+        /**
+         * Set up for the next run, untimed
+         *
+         * @throws Exception Anything the setup throws
+         */
+        default void prepare() throws Exception {
+        }
+
+        /**
+         * Run the operation once
+         *
+         * @return Number of operations performed (e.g. sentences decoded), for the per-op figures
+         * @throws Exception Anything the operation throws
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * Run an operation through its warmup and timed iterations and print its figures
+     *
+     * @param name Benchmark name
+     * @param unit What one operation is, for the report
+     * @param op   Operation to measure
+     * @throws Exception Anything the operation throws
+     */
+    void bench(String name, String unit, Op op) throws Exception {
+        if (!name.contains(filter)) return;
+        for (int i = 0; i < warmup; i++) {
+            op.prepare();
+            op.run();
+        }
+        double[] nanosPerOp = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            op.prepare();
+            long start = System.nanoTime();
+            long ops = op.run();
+            nanosPerOp[i] = (double) (System.nanoTime() - start) / Math.max(ops, 1);
+        }
+        //mean and sample standard deviation over the timed iterations
+        double mean = 0, var = 0;
+        for (double t : nanosPerOp) mean += t / iterations;
+        for (double t : nanosPerOp) var += (t - mean) * (t - mean) / Math.max(iterations - 1, 1);
+        System.out.printf("%-36s %14.1f +- %10.1f ns/%s  (%,.0f %s/s)%n", name, mean, Math.sqrt(var), unit, 1e9 / mean, unit);
+    }
+
+    /**
+     * Write a pair of aligned sentence and tag files drawn from the benchmark's generating model
+     *
+     * @param name    Base name of the files in dir
+     * @param count   Number of sentences
+     * @param lengths Sentence length distribution, as CorpusGenerator takes it
+     * @param oovRate Fraction of words replaced by words never seen in training
+     * @param seed    Seed of the sentences drawn from the model
+     * @return Paths of the sentence file and the tag file
+     * @throws IOException Possible IOException when writing
+     */
+    Path[] corpus(String name, int count, String lengths, double oovRate, long seed) throws IOException {
+        Path wordFile = dir.resolve(name + "-sentences.txt"), tagFile = dir.resolve(name + "-tags.txt");
+        generator.write(wordFile, tagFile, count, Long.MAX_VALUE, new CorpusGenerator.Lengths(lengths), oovRate, seed);
+        return new Path[]{wordFile, tagFile};
+    }
+
+    /**
+     * Generate the corpora and run every benchmark
+     *
+     * @throws Exception Anything a benchmark throws
+     */
+    void run() throws Exception {
+        dir = Files.createTempDirectory("hmm-bench");
+        generator = new CorpusGenerator(vocab, numTags, zipf, 42);
+        Path[] train = corpus("train", sentences, "uniform:1:30", 0.0, 1);
+        Path[] test = corpus("test", Math.max(sentences / 10, 1), "uniform:1:30", 0.05, 2);
+        HMM hmm = new HMM();
+        hmm.buildHMM(train[0].toString(), train[1].toString());
+        CompiledHMM model = hmm.compile();
+        System.out.printf("corpus: %,d sentences, %d tags, %,d words seen%n", sentences, model.numTags - 1, model.words.size());
+
+        //training
+        bench("buildHMM", "sentence", () -> {
+            HMM trained = new HMM();
+            trained.buildHMM(train[0].toString(), train[1].toString());
+            sink += trained.transScores.size();
+            return sentences;
+        });
+        ForkJoinPool pool = new ForkJoinPool();
+        bench("buildHMM.parallel", "sentence", () -> {
+            HMM trained = new HMM();
+            trained.buildHMM(train[0].toString(), train[1].toString(), pool);
+            sink += trained.transScores.size();
+            return sentences;
+        });
+        bench("buildHMM.mapped", "sentence", () -> {
+            HMM trained = new HMM();
+            trained.buildHMM(MappedCorpus.open(train[0], train[1]), pool);
+            sink += trained.transScores.size();
+            return sentences;
+        });
+        Path compiled = dir.resolve("train.hmmc");
+        CompiledCorpus.compile(train[0].toString(), train[1].toString(), compiled);
+        CompiledCorpus corpus = CompiledCorpus.map(compiled);
+        bench("buildHMM.compiled", "sentence", () -> {
+            HMM trained = new HMM();
+            trained.buildHMM(corpus);
+            sink += trained.transScores.size();
+            return sentences;
+        });
+        bench("normalizeScores", "sentence", new Op() {
+            HMM counted;    //freshly counted HMM for the next run, since normalizing consumes the counts
+
+            public void prepare() throws IOException {
+                counted = new HMM();
+                try (BufferedReader wordIn = Files.newBufferedReader(train[0]); BufferedReader tagIn = Files.newBufferedReader(train[1])) {
+                    String wordLine, tagLine;
+                    while ((wordLine = wordIn.readLine()) != null && (tagLine = tagIn.readLine()) != null) {
+                        counted.createScores(wordLine.toLowerCase().trim().split(" "), tagLine.trim().split(" "));
+                    }
+                }
+            }
+
+            public long run() {
+                counted.normalizeScores();
+                sink += counted.observationScores.size();
+                return sentences;
+            }
+        });
+
+        //decoding, over sentences of a few lengths, with or without many unseen words
+        ViterbiDecoder decoder = new ViterbiDecoder(model);
+        for (int length : new int[]{5, 25, 500}) {
+            for (double oovRate : new double[]{0.0, 0.5}) {
+                List<String> lines = Files.readAllLines(corpus("decode", Math.max(2000 / length, 4), "fixed:" + length, oovRate, length)[0]);
+                String suffix = "." + (length == 5 ? "short" : length == 25 ? "medium" : "long") + (oovRate > 0 ? ".oov" : ".known");
+                long tokens = (long) lines.size() * length;
+                bench("viterbi" + suffix, "token", () -> {
+                    for (String line : lines) sink += hmm.viterbi(line).size();
+                    return tokens;
+                });
+                bench("compiled.viterbi" + suffix, "token", () -> {
+                    for (String line : lines) sink += decoder.decodeLine(line, DecodeOptions.EXHAUSTIVE);
+                    return tokens;
+                });
+                DecodeOptions pruned = DecodeOptions.EXHAUSTIVE.withTagDictionary(true).withBeamWidth(8);
+                bench("compiled.viterbi.pruned" + suffix, "token", () -> {
+                    for (String line : lines) sink += decoder.decodeLine(line, pruned);
+                    return tokens;
+                });
+            }
+        }
+
+        //evaluation, with its console output thrown away
+        long testSentences;
+        try (Stream<String> lines = Files.lines(test[0])) {
+            testSentences = lines.count();
+        }
+        PrintStream console = System.out;
+        bench("testOnFiles", "sentence", () -> {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                hmm.testOnFiles(test[0].toString(), test[1].toString());
+            } finally {
+                System.setOut(console);
+            }
+            return testSentences;
+        });
+        pool.shutdown();
+        System.out.println("(sink " + sink + ")");
+        //remove the generated corpora
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Parse the options and run the benchmarks
+     *
+     * @param args Command-line options, see the class comment
+     * @throws Exception Anything a benchmark throws
+     */
+    public static void main(String[] args) throws Exception {
+        HMMBenchmark benchmark = new HMMBenchmark();
+        String usage = "Usage: java HMMBenchmark [--sentences N] [--tags N] [--vocab N] [--zipf S] [--warmup N] [--iterations N] [--filter substring]";
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--sentences": HMM.requireValues(args, i, 1, usage); benchmark.sentences = Integer.parseInt(args[++i]); break;
+                    case "--tags": HMM.requireValues(args, i, 1, usage); benchmark.numTags = Integer.parseInt(args[++i]); break;
+                    case "--vocab": HMM.requireValues(args, i, 1, usage); benchmark.vocab = Integer.parseInt(args[++i]); break;
+                    case "--zipf": HMM.requireValues(args, i, 1, usage); benchmark.zipf = Double.parseDouble(args[++i]); break;
+                    case "--warmup": HMM.requireValues(args, i, 1, usage); benchmark.warmup = Integer.parseInt(args[++i]); break;
+                    case "--iterations": HMM.requireValues(args, i, 1, usage); benchmark.iterations = Integer.parseInt(args[++i]); break;
+                    case "--filter": HMM.requireValues(args, i, 1, usage); benchmark.filter = args[++i]; break;
+                    default: HMM.exitUsage("Unknown option " + args[i], usage);
+                }
+            }
+        } catch (NumberFormatException e) {
+            HMM.exitUsage("Not a number: " + e.getMessage(), usage);
+        }
+        if (benchmark.sentences < 1 || benchmark.numTags < 1 || benchmark.vocab < 1 || benchmark.warmup < 0 || benchmark.iterations < 1) {
+            HMM.exitUsage("Sentences, tags, vocabulary and iterations must be positive, warmup not negative", usage);
+        }
+        benchmark.run();
+    }
+}
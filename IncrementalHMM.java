@@ -0,0 +1,226 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A model that keeps learning. Raw counts are kept apart from the scores, so sentences can be added at any time, and
+ * adding one only marks the tag rows it touched as dirty. The next decode renormalizes just those rows and publishes a
+ * fresh CompiledHMM: if the sentence brought no new tags, words or tag pairs, the previous model's layout is reused
+ * and only the dirty rows' scores are replaced; otherwise the layout is rebuilt, still reusing the cached scores of
+ * every clean row. Each published model is never changed afterwards. Not thread-safe, like HMM
+ *
+ * Only the renormalizing is incremental, not the publishing: since a published model is never changed, every publish
+ * copies the transition matrix and all emission scores, and one after new tags, words or tag pairs also lays out the
+ * emission tables and copies both vocabularies anew. A publish therefore costs time and garbage in proportion to the
+ * whole model, however small the change; when adding many sentences, add them in batches and decode between batches
+ * rather than after every sentence
+ */
+public class IncrementalHMM {
+    final CountTable counts = new CountTable();     //raw counts of every sentence added so far
+    final double U;                                 //unseen word penalty
+    private final Tokenizer wordTokenizer = new Tokenizer(true);    //tokenizes added word lines into count word IDs
+    private final Tokenizer tagTokenizer = new Tokenizer(false);    //tokenizes added tag lines into count tag IDs
+    private int[] wordIds = new int[32], tagIds = new int[32];      //scratch IDs of an added String[] sentence
+    private boolean[] transDirty = new boolean[16]; //tag ID -> whether its transition counts changed since the last refresh
+    private boolean[] emitDirty = new boolean[16];  //tag ID -> whether its emission counts changed since the last refresh
+    private boolean dirty;                          //whether any row is dirty
+    private double[] transScores = new double[0];   //normalized transition scores in form [currTag * numTags + nextTag]
+    private int[] succCount = new int[0];           //tag ID -> number of observed successors at the last refresh
+    private double[][] emitScores = new double[16][];   //tag ID -> score of entry i of counts.emissions[tag]
+    private int[][] emitPos = new int[16][];        //tag ID -> index of entry i's score in the model's emission tables
+    private CompiledHMM model;                      //model as of the last refresh, null before the first
+    private double[] modelEmitScore;                //emission scores behind model
+    private ViterbiDecoder decoder;                 //decoder of model, replaced whenever a new model is published
+
+    /**
+     * Construct an empty model
+     *
+     * @param U Unseen word penalty
+     */
+    public IncrementalHMM(double U) {
+        this.U = U;
+    }
+
+    /**
+     * Count one more training sentence, the same way HMM.createScores does
+     *
+     * @param words String array of training words
+     * @param tags  String array of training tags
+     */
+    public void addSentence(String[] words, String[] tags) {
+        int n = words.length;
+        if (tags.length < n) throw new IllegalArgumentException("Training sentence has " + n + " words but only " + tags.length + " tags");
+        if (wordIds.length < n) {
+            wordIds = new int[n * 2];
+            tagIds = new int[n * 2];
+        }
+        for (int i = 0; i < n; i++) {
+            wordIds[i] = counts.words.add(words[i]);
+            tagIds[i] = counts.tags.add(tags[i]);
+        }
+        add(wordIds, tagIds, n);
+    }
+
+    /**
+     * Tokenize and count one more pair of training lines, the same way buildHMM does
+     *
+     * @param wordLine Line of training words
+     * @param tagLine  Line of matching training tags
+     */
+    public void addSentence(CharSequence wordLine, CharSequence tagLine) {
+        int n = wordTokenizer.tokenize(wordLine, counts.words, true);
+        int numTags = tagTokenizer.tokenize(tagLine, counts.tags, true);
+        if (numTags < n) throw new IllegalArgumentException("Training sentence has " + n + " words but only " + numTags + " tags");
+        add(wordTokenizer.ids(), tagTokenizer.ids(), n);
+    }
+
+    /**
+     * Count an interned sentence and mark the rows it touched
+     *
+     * @param words Count word IDs of the sentence
+     * @param tags  Count tag IDs of the sentence
+     * @param n     Number of words
+     */
+    private void add(int[] words, int[] tags, int n) {
+        counts.addSentence(words, tags, n, n);
+        int numTags = counts.tags.size();
+        if (transDirty.length < numTags) {
+            transDirty = Arrays.copyOf(transDirty, numTags * 2);
+            emitDirty = Arrays.copyOf(emitDirty, numTags * 2);
+        }
+        //the sentence adds a transition out of '#' and out of every tag but its last, and an emission of every tag
+        if (n > 0) transDirty[CompiledHMM.START] = true;
+        for (int i = 0; i < n; i++) {
+            emitDirty[tags[i]] = true;
+            if (i < n - 1) transDirty[tags[i]] = true;
+        }
+        dirty = n > 0 || dirty;
+    }
+
+    /**
+     * @return The model with every sentence added so far, renormalizing the dirty rows first if there are any
+     */
+    public CompiledHMM model() {
+        if (dirty || model == null) refresh();
+        return model;
+    }
+
+    /**
+     * Run Viterbi on the given sentence with every sentence added so far
+     *
+     * @param line A test line of words (observations) that tags need to be guessed for
+     * @return The best possible tags at each word as an ArrayList
+     */
+    public ArrayList<String> viterbi(String line) {
+        CompiledHMM current = model();
+        //only the latest model's decoder is kept, so published models are collected once nobody else holds them
+        if (decoder == null || decoder.model != current) decoder = new ViterbiDecoder(current);
+        return decoder.viterbi(line);
+    }
+
+    /**
+     * Renormalize the dirty rows and publish a new model
+     */
+    private void refresh() {
+        int numTags = counts.tags.size(), capacity = counts.tagCapacity;
+        boolean rebuild = model == null || numTags != model.numTags || counts.words.size() != model.words.size();
+        //a new tag changes the shape of the transition matrix, so every row is recomputed into a new one
+        if (numTags * numTags != transScores.length) {
+            transScores = new double[numTags * numTags];
+            succCount = new int[numTags];
+            Arrays.fill(transDirty, 0, numTags, true);
+        } else transScores = transScores.clone();   //the published model keeps the old matrix
+        if (emitScores.length < numTags) {
+            emitScores = Arrays.copyOf(emitScores, capacity);
+            emitPos = Arrays.copyOf(emitPos, capacity);
+        }
+        for (int t = 0; t < numTags; t++) {
+            if (transDirty[t]) {
+                long totalFreq = 0;
+                for (int next = 0; next < numTags; next++) totalFreq += counts.trans[t * capacity + next];
+                int successors = 0;
+                for (int next = 0; next < numTags; next++) {
+                    long count = counts.trans[t * capacity + next];
+                    transScores[t * numTags + next] = count == 0 ? Double.NEGATIVE_INFINITY : Math.log((double) count / totalFreq);
+                    if (count != 0) successors++;
+                }
+                //counts only grow, so a changed number of successors means a newly observed transition
+                if (successors != succCount[t]) rebuild = true;
+                succCount[t] = successors;
+                transDirty[t] = false;
+            }
+            if (emitDirty[t]) {
+                IntLongMap emitted = counts.emissions[t];
+                long totalFreq = 0;
+                for (int i = 0; i < emitted.size(); i++) totalFreq += emitted.value(i);
+                //a longer row means the tag emitted a word it never had before
+                if (emitScores[t] == null || emitScores[t].length != emitted.size()) {
+                    emitScores[t] = new double[emitted.size()];
+                    rebuild = true;
+                }
+                for (int i = 0; i < emitted.size(); i++) emitScores[t][i] = Math.log((double) emitted.value(i) / totalFreq);
+            }
+        }
+        if (rebuild) rebuild(numTags);
+        else {
+            //same layout: share it, and only replace the scores of the dirty emission rows
+            modelEmitScore = modelEmitScore.clone();
+            for (int t = 0; t < numTags; t++) {
+                if (!emitDirty[t]) continue;
+                for (int i = 0; i < emitScores[t].length; i++) modelEmitScore[emitPos[t][i]] = emitScores[t][i];
+            }
+            model = new CompiledHMM(model.tags, model.words, DoubleBuffer.wrap(transScores), model.succStart, model.succ,
+                    model.emitStart, model.emitTag, DoubleBuffer.wrap(modelEmitScore), U);
+        }
+        Arrays.fill(emitDirty, false);
+        dirty = false;
+    }
+
+    /**
+     * Lay out a new model from the cached scores of every row
+     *
+     * @param numTags Number of tag IDs
+     */
+    private void rebuild(int numTags) {
+        //successor lists in tag ID order, as CompiledHMM.compile(CountTable, U) lists them
+        int[] succStart = new int[numTags + 1];
+        int numSucc = 0;
+        for (int t = 0; t < numTags; t++) numSucc += succCount[t];
+        int[] succ = new int[numSucc];
+        int pos = 0;
+        for (int t = 0; t < numTags; t++) {
+            succStart[t] = pos;
+            for (int next = 0; next < numTags; next++) {
+                if (transScores[t * numTags + next] != Double.NEGATIVE_INFINITY) succ[pos++] = next;
+            }
+        }
+        succStart[numTags] = pos;
+        //word-major emission tables, each word's tags in ascending tag ID order
+        int numWords = counts.words.size();
+        int[] emitStart = new int[numWords + 1];
+        for (int t = 0; t < numTags; t++) {
+            IntLongMap emitted = counts.emissions[t];
+            for (int i = 0; i < emitted.size(); i++) emitStart[emitted.key(i) + 1]++;
+        }
+        for (int w = 0; w < numWords; w++) emitStart[w + 1] += emitStart[w];
+        int numEmit = emitStart[numWords];
+        int[] emitTag = new int[numEmit];
+        modelEmitScore = new double[numEmit];
+        int[] fill = Arrays.copyOf(emitStart, numWords);
+        for (int t = 0; t < numTags; t++) {
+            IntLongMap emitted = counts.emissions[t];
+            if (emitPos[t] == null || emitPos[t].length != emitted.size()) emitPos[t] = new int[emitted.size()];
+            for (int i = 0; i < emitted.size(); i++) {
+                int e = fill[emitted.key(i)]++;
+                emitTag[e] = t;
+                modelEmitScore[e] = emitScores[t][i];
+                emitPos[t][i] = e;
+            }
+        }
+        //copies, so later sentences cannot change the published model's vocabularies
+        model = new CompiledHMM(counts.tags.copy(), counts.words.copy(), DoubleBuffer.wrap(transScores),
+                IntBuffer.wrap(succStart), IntBuffer.wrap(succ), IntBuffer.wrap(emitStart), IntBuffer.wrap(emitTag),
+                DoubleBuffer.wrap(modelEmitScore), U);
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, for percentiles under concurrent recording. Buckets are log-linear:
+ * exact below 16ns, then 8 buckets per power of two, so every reported percentile is within 12.5% of the true value
+ */
+public class LatencyHistogram {
+    private static final int SUB = 8;       //buckets per power of two
+    private static final int LINEAR = 16;   //values below this get a bucket each
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 4) * SUB);   //bucket -> recorded values
+
+    /**
+     * Record one latency
+     *
+     * @param nanos Latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+    }
+
+    /**
+     * @return Number of recorded latencies
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @param fraction Fraction of recorded latencies, e.g. 0.99 for the 99th percentile
+     * @return Upper bound of the bucket holding that percentile, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) total += snapshot[i] = counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /**
+     * Forget every recorded latency
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+    }
+
+    /**
+     * @param nanos Non-negative latency
+     * @return Bucket of the latency
+     */
+    private static int bucket(long nanos) {
+        if (nanos < LINEAR) return (int) nanos;
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);   //at least 4
+        int sub = (int) (nanos >>> (exp - 3)) & (SUB - 1);
+        return LINEAR + (exp - 4) * SUB + sub;
+    }
+
+    /**
+     * @param bucket Bucket index
+     * @return Largest latency that falls in the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exp = (bucket - LINEAR) / SUB + 4, sub = (bucket - LINEAR) % SUB;
+        return ((long) (SUB + sub + 1) << (exp - 3)) - 1;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Training corpus read straight out of memory-mapped word and tag files. Opening it maps both files and indexes their
+ * lines in one pass; after that, line pairs are handed out as zero-copy views into the mappings, so counting works on
+ * the raw UTF-8 bytes and never decodes them into Strings. Files over 2GB are mapped as several segments, each ending
+ * on a line boundary so that no line straddles two mappings. A corpus can be seeked to any pair, and split into
+ * ranges of roughly equal bytes for parallel workers.
+ *
+ * Lines end at '\n'; a '\r' before it is trimmed along with other whitespace by the tokenizer. Pairs are aligned by
+ * line number and run out with the shorter file, just as buildHMM reads them. The mappings stay valid until the
+ * corpus is garbage collected
+ */
+public class MappedCorpus {
+    static final int SEGMENT_BYTES = 1 << 30;   //most bytes mapped at once
+    static final int STRIDE = 64;               //lines per index entry, lines in between are found by scanning
+    final Lines words;      //line index of the word file
+    final Lines tags;       //line index of the tag file
+    final long from, to;    //pairs this view covers, from (inclusive) to to (exclusive)
+
+    /**
+     * Memory-mapped file with a sparse index of where its lines start
+     */
+    static class Lines {
+        private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;   //'\n' in every byte
+        private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;      //low seven bits of every byte
+        final ByteBuffer[] segments;    //line-aligned mappings, little-endian for the word-at-a-time scan
+        final long[] starts;            //file offset of each segment, then the file size
+        final long[] index;             //offset of line k * STRIDE at index[k]
+        final long count;               //number of lines
+        final long size;                //file size in bytes
+
+        /**
+         * Map a file and index its lines
+         *
+         * @param path         File to map
+         * @param segmentBytes Most bytes to map at once
+         * @throws IOException Possible IOException when mapping, or if a line is longer than a segment
+         */
+        Lines(Path path, int segmentBytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                size = channel.size();
+                ByteBuffer[] segments = new ByteBuffer[4];
+                long[] starts = new long[5];
+                long[] index = new long[64];
+                int numSegments = 0;
+                long lines = 0;
+                long offset = 0;
+                do {
+                    long length = Math.min(segmentBytes, size - offset);
+                    ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+                    //end every segment but the last just after its last newline, the rest is mapped again next time
+                    int end = (int) length;
+                    if (offset + length < size) {
+                        while (end > 0 && segment.get(end - 1) != '\n') end--;
+                        if (end == 0) throw new IOException(path + ": line at byte " + offset + " is longer than " + segmentBytes + " bytes");
+                        segment.limit(end);
+                    }
+                    if (numSegments == segments.length) {
+                        segments = Arrays.copyOf(segments, numSegments * 2);
+                        starts = Arrays.copyOf(starts, numSegments * 2 + 1);
+                    }
+                    segments[numSegments] = segment;
+                    starts[numSegments++] = offset;
+                    //index the segment: a new line starts after every newline
+                    if (offset == 0 && end > 0) lines = 1;
+                    for (int pos = 0; pos < end; pos += 8) {
+                        long mask = pos + 8 <= end ? newlines(segment.getLong(pos)) : tailNewlines(segment, pos, end);
+                        for (; mask != 0; mask &= mask - 1) {
+                            long lineStart = offset + pos + (Long.numberOfTrailingZeros(mask) >>> 3) + 1;
+                            if (lineStart == size) continue;
+                            if (lines % STRIDE == 0) {
+                                if ((int) (lines / STRIDE) == index.length) index = Arrays.copyOf(index, index.length * 2);
+                                index[(int) (lines / STRIDE)] = lineStart;
+                            }
+                            lines++;
+                        }
+                    }
+                    offset += end;
+                } while (offset < size);
+                starts[numSegments] = size;
+                this.segments = Arrays.copyOf(segments, numSegments);
+                this.starts = Arrays.copyOf(starts, numSegments + 1);
+                this.index = Arrays.copyOf(index, (int) ((lines + STRIDE - 1) / STRIDE));
+                count = lines;
+            }
+        }
+
+        /**
+         * @param word Eight bytes, first byte lowest
+         * @return Mask with the top bit set in exactly the bytes that are '\n'
+         */
+        static long newlines(long word) {
+            long x = word ^ NEWLINES;
+            return ~(((x & LOW7) + LOW7) | x | LOW7);
+        }
+
+        /**
+         * @param segment Segment to scan
+         * @param pos     Index of the first byte
+         * @param end     Index just past the last byte, less than eight bytes on
+         * @return Mask like newlines for the bytes from pos to end
+         */
+        private static long tailNewlines(ByteBuffer segment, int pos, int end) {
+            long mask = 0;
+            for (int i = pos; i < end; i++) {
+                if (segment.get(i) == '\n') mask |= 0x80L << ((i - pos) * 8);
+            }
+            return mask;
+        }
+
+        /**
+         * @param offset File offset, at most the file size
+         * @return Segment holding the offset, the last segment for the file size
+         */
+        int segment(long offset) {
+            int s = Arrays.binarySearch(starts, 0, segments.length, offset);
+            return s >= 0 ? s : Math.max(-s - 2, 0);
+        }
+
+        /**
+         * @param segment Segment to scan
+         * @param pos     Index in the segment where a line starts
+         * @return Index of the newline ending the line, or the segment's limit for a last line without one
+         */
+        int lineEnd(int segment, int pos) {
+            ByteBuffer b = segments[segment];
+            int limit = b.limit();
+            //eight bytes at a time, then the tail byte by byte
+            for (; pos + 8 <= limit; pos += 8) {
+                long mask = newlines(b.getLong(pos));
+                if (mask != 0) return pos + (Long.numberOfTrailingZeros(mask) >>> 3);
+            }
+            for (; pos < limit; pos++) {
+                if (b.get(pos) == '\n') return pos;
+            }
+            return limit;
+        }
+
+        /**
+         * @param offset File offset where a line starts
+         * @return File offset where the next line starts, or the file size after the last line
+         */
+        long next(long offset) {
+            int s = segment(offset);
+            return Math.min(starts[s] + lineEnd(s, (int) (offset - starts[s])) + 1, size);
+        }
+
+        /**
+         * @param line Line number, up to the number of lines
+         * @return File offset where the line starts, or the file size for the number of lines
+         */
+        long offset(long line) {
+            if (line >= count) return size;
+            long offset = index[(int) (line / STRIDE)];
+            for (long skip = line % STRIDE; skip > 0; skip--) offset = next(offset);
+            return offset;
+        }
+
+        /**
+         * @param offset File offset
+         * @return First line starting at or after the offset, or the number of lines if there is none
+         */
+        long lineAt(long offset) {
+            int k = Arrays.binarySearch(index, offset);
+            if (k < 0) k = Math.max(-k - 2, 0);
+            long line = (long) k * STRIDE;
+            if (line >= count) return count;
+            for (long at = index[k]; at < offset && line < count; line++) at = next(at);
+            return line;
+        }
+    }
+
+    /**
+     * Reusable view of one line pair at a time. The buffers are the corpus's own mappings, shared and not to be
+     * modified, and the bounds are only valid until the next call to next or seek
+     */
+    public class Cursor {
+        public ByteBuffer wordBuf;  //mapping holding the current word line
+        public int wordFrom;        //index of the word line's first byte
+        public int wordTo;          //index just past the word line's last byte
+        public ByteBuffer tagBuf;   //mapping holding the current tag line
+        public int tagFrom;         //index of the tag line's first byte
+        public int tagTo;           //index just past the tag line's last byte
+        private long pair;          //pair the next call to next reads, counted from the start of the files
+        private int wordSegment, wordPos;   //where the next word line starts
+        private int tagSegment, tagPos;     //where the next tag line starts
+
+        /**
+         * Construct a cursor before the first pair of the view
+         */
+        Cursor() {
+            seek(0);
+        }
+
+        /**
+         * Position the cursor so the next call to next reads the given pair
+         *
+         * @param index Pair number within the view
+         */
+        public void seek(long index) {
+            if (index < 0 || index > size()) throw new IndexOutOfBoundsException("Pair " + index + " of " + size());
+            pair = from + index;
+            long offset = words.offset(pair);
+            wordSegment = words.segment(offset);
+            wordPos = (int) (offset - words.starts[wordSegment]);
+            offset = tags.offset(pair);
+            tagSegment = tags.segment(offset);
+            tagPos = (int) (offset - tags.starts[tagSegment]);
+        }
+
+        /**
+         * Move to the next line pair
+         *
+         * @return Whether there was one, false at the end of the view
+         */
+        public boolean next() {
+            if (pair >= to) return false;
+            if (wordPos >= words.segments[wordSegment].limit()) {
+                wordSegment++;
+                wordPos = 0;
+            }
+            wordBuf = words.segments[wordSegment];
+            wordFrom = wordPos;
+            wordTo = words.lineEnd(wordSegment, wordPos);
+            wordPos = wordTo + 1;
+            if (tagPos >= tags.segments[tagSegment].limit()) {
+                tagSegment++;
+                tagPos = 0;
+            }
+            tagBuf = tags.segments[tagSegment];
+            tagFrom = tagPos;
+            tagTo = tags.lineEnd(tagSegment, tagPos);
+            tagPos = tagTo + 1;
+            pair++;
+            return true;
+        }
+    }
+
+    /**
+     * Map and index a pair of training files
+     *
+     * @param wordFile Path to word file
+     * @param tagFile  Path to tag file
+     * @return The corpus of all their line pairs
+     * @throws IOException Possible IOException when mapping, or if a line is longer than 1GB
+     */
+    public static MappedCorpus open(Path wordFile, Path tagFile) throws IOException {
+        return open(wordFile, tagFile, SEGMENT_BYTES);
+    }
+
+    /**
+     * Map and index a pair of training files in segments of a given size
+     *
+     * @param wordFile     Path to word file
+     * @param tagFile      Path to tag file
+     * @param segmentBytes Most bytes to map at once
+     * @return The corpus of all their line pairs
+     * @throws IOException Possible IOException when mapping, or if a line is longer than a segment
+     */
+    static MappedCorpus open(Path wordFile, Path tagFile, int segmentBytes) throws IOException {
+        Lines words = new Lines(wordFile, segmentBytes), tags = new Lines(tagFile, segmentBytes);
+        return new MappedCorpus(words, tags, 0, Math.min(words.count, tags.count));
+    }
+
+    /**
+     * Construct a view of a range of pairs
+     *
+     * @param words Line index of the word file
+     * @param tags  Line index of the tag file
+     * @param from  First pair of the view
+     * @param to    Pair just past the last of the view
+     */
+    private MappedCorpus(Lines words, Lines tags, long from, long to) {
+        this.words = words;
+        this.tags = tags;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return Number of line pairs in this view
+     */
+    public long size() {
+        return to - from;
+    }
+
+    /**
+     * @return A cursor before the first pair of this view
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * @param from First pair, within this view
+     * @param to   Pair just past the last, within this view
+     * @return View of that range of pairs, sharing this view's mappings
+     */
+    public MappedCorpus range(long from, long to) {
+        if (from < 0 || to < from || to > size()) throw new IndexOutOfBoundsException("Range " + from + ".." + to + " of " + size());
+        return new MappedCorpus(words, tags, this.from + from, this.from + to);
+    }
+
+    /**
+     * Split this view into consecutive ranges of roughly equal word-file bytes, for parallel workers. Ranges that would
+     * be empty are left out, so there may be fewer than asked for
+     *
+     * @param parts Number of ranges wanted
+     * @return The ranges, in order, together covering this view
+     */
+    public MappedCorpus[] split(int parts) {
+        if (parts < 1) throw new IllegalArgumentException("Parts must be positive: " + parts);
+        long start = words.offset(from), bytes = words.offset(to) - start;
+        MappedCorpus[] ranges = new MappedCorpus[parts];
+        int n = 0;
+        long rangeFrom = from;
+        for (int k = 1; k <= parts; k++) {
+            //cut at the first line starting at or after the k-th share of the bytes
+            long rangeTo = k == parts ? to : Math.max(rangeFrom, Math.min(to, words.lineAt(start + bytes * k / parts)));
+            if (rangeTo > rangeFrom) ranges[n++] = new MappedCorpus(words, tags, rangeFrom, rangeTo);
+            rangeFrom = rangeTo;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+}
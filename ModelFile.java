@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers for the binary model format written by CompiledHMM.save: a header (magic, version, counts, U) followed by
+ * the vocabularies and score tables as raw arrays. Everything is little-endian, and every array starts on an 8-byte
+ * boundary so the model can use the file's bytes in place, whether read onto the heap or memory-mapped
+ */
+public class ModelFile {
+    static final int MAGIC = 0x424D4D48;    //"HMMB" read as little-endian bytes
+    static final int VERSION = 1;           //bumped whenever the layout changes
+
+    /**
+     * @param position Byte position in the file
+     * @return The position rounded up to the next 8-byte boundary
+     */
+    static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * Streams a model file out through a reusable direct buffer
+     */
+    static class Writer {
+        final FileChannel out;      //file being written
+        final ByteBuffer buf;       //pending bytes not yet written to out
+        long position;              //bytes written so far, including those still in buf
+
+        /**
+         * @param out File to write, from its start
+         */
+        Writer(FileChannel out) {
+            this.out = out;
+            buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Append an int
+         */
+        void putInt(int value) throws IOException {
+            room(4);
+            buf.putInt(value);
+            position += 4;
+        }
+
+        /**
+         * Append a char
+         */
+        void putChar(char value) throws IOException {
+            room(2);
+            buf.putChar(value);
+            position += 2;
+        }
+
+        /**
+         * Append a double
+         */
+        void putDouble(double value) throws IOException {
+            room(8);
+            buf.putDouble(value);
+            position += 8;
+        }
+
+        /**
+         * Pad with zeros up to the next 8-byte boundary
+         */
+        void align() throws IOException {
+            while (position != ModelFile.align(position)) {
+                room(1);
+                buf.put((byte) 0);
+                position++;
+            }
+        }
+
+        /**
+         * Align, then append the first length values
+         */
+        void putInts(IntBuffer values, int length) throws IOException {
+            align();
+            for (int i = 0; i < length; i++) putInt(values.get(i));
+        }
+
+        /**
+         * Align, then append the first length values
+         */
+        void putDoubles(DoubleBuffer values, int length) throws IOException {
+            align();
+            for (int i = 0; i < length; i++) putDouble(values.get(i));
+        }
+
+        /**
+         * Align, then append the first length values
+         */
+        void putChars(CharBuffer values, int length) throws IOException {
+            align();
+            for (int i = 0; i < length; i++) {
+                room(2);
+                buf.putChar(values.get(i));
+                position += 2;
+            }
+        }
+
+        /**
+         * Write out everything still buffered
+         */
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+
+        /**
+         * Make room in the buffer for the given number of bytes
+         */
+        private void room(int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush();
+        }
+    }
+
+    /**
+     * Walks a model file that is already in a buffer (heap or mapped), handing out views of its arrays and keeping the
+     * alignment in step with Writer
+     */
+    static class Reader {
+        final ByteBuffer buf;       //whole model file
+
+        /**
+         * @param buf Model file contents, positioned at its start
+         */
+        Reader(ByteBuffer buf) {
+            this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * @return The next int
+         */
+        int getInt() {
+            return buf.getInt();
+        }
+
+        /**
+         * @return The next double
+         */
+        double getDouble() {
+            return buf.getDouble();
+        }
+
+        /**
+         * Skip to the next 8-byte boundary
+         */
+        void align() {
+            buf.position((int) ModelFile.align(buf.position()));
+        }
+
+        /**
+         * Align, then skip over the next length values
+         *
+         * @return View of the skipped values, sharing the file's buffer
+         */
+        IntBuffer ints(int length) {
+            align();
+            IntBuffer view = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().limit(length).slice();
+            buf.position(buf.position() + length * 4);
+            return view;
+        }
+
+        /**
+         * Align, then skip over the next length values
+         *
+         * @return View of the skipped values, sharing the file's buffer
+         */
+        DoubleBuffer doubles(int length) {
+            align();
+            DoubleBuffer view = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().limit(length).slice();
+            buf.position(buf.position() + length * 8);
+            return view;
+        }
+
+        /**
+         * Align, then skip over the next length values
+         *
+         * @return View of the skipped values, sharing the file's buffer
+         */
+        CharBuffer chars(int length) {
+            align();
+            CharBuffer view = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asCharBuffer().limit(length).slice();
+            buf.position(buf.position() + length * 2);
+            return view;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the model that live traffic decodes with, and swaps in a newly trained or reloaded one atomically. Models
+ * are immutable CompiledHMM snapshots, so a swap never pauses or disturbs decodes already running: each call reads the
+ * current model once and finishes on it, while every call starting after the swap sees the new one. Idle decoders are
+ * pooled here rather than kept per thread, and only those of the published model are kept, so a swapped-out model is
+ * collected as soon as its last decode finishes
+ */
+public class ModelHolder {
+    private final AtomicReference<CompiledHMM> current;    //model new decodes use
+    private final ConcurrentLinkedQueue<ViterbiDecoder> decoders = new ConcurrentLinkedQueue<>();  //idle decoders
+
+    /**
+     * Construct a holder publishing an initial model
+     *
+     * @param model Model to publish
+     */
+    public ModelHolder(CompiledHMM model) {
+        if (model == null) throw new NullPointerException("Null model");
+        current = new AtomicReference<>(model);
+    }
+
+    /**
+     * @return The currently published model; hold on to it for the length of one request so it sees a single model
+     */
+    public CompiledHMM get() {
+        return current.get();
+    }
+
+    /**
+     * Publish a model in place of the current one
+     *
+     * @param model Model to publish
+     * @return The model it replaced, which stays usable by whoever still holds it
+     */
+    public CompiledHMM swap(CompiledHMM model) {
+        if (model == null) throw new NullPointerException("Null model");
+        return current.getAndSet(model);
+    }
+
+    /**
+     * Run Viterbi on the given sentence with the currently published model
+     *
+     * @param line A test line of words (observations) that tags need to be guessed for
+     * @return The best possible tags at each word as an ArrayList
+     */
+    public ArrayList<String> viterbi(String line) {
+        ViterbiDecoder decoder = borrow(current.get());
+        try {
+            return decoder.viterbi(line);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * Take an idle decoder of a model from the pool; hand it back with release once done
+     *
+     * @param model Model to decode with, normally the one get returned
+     * @return An idle decoder of the model, created if there is none
+     */
+    public ViterbiDecoder borrow(CompiledHMM model) {
+        ViterbiDecoder decoder;
+        //decoders of a model that was swapped out are dropped as they come up
+        while ((decoder = decoders.poll()) != null) {
+            if (decoder.model == model) return decoder;
+        }
+        return new ViterbiDecoder(model);
+    }
+
+    /**
+     * @param decoder Decoder done with, returned to the pool if its model is still the published one
+     */
+    public void release(ViterbiDecoder decoder) {
+        if (decoder.model == current.get()) decoders.add(decoder);
+    }
+
+    /**
+     * Load a model file written by CompiledHMM.save and publish it
+     *
+     * @param path   Model file
+     * @param mapped Whether to memory-map the file rather than load it onto the heap
+     * @return The model it replaced
+     * @throws IOException Possible IOException when reading, or if the file is not a model of a supported version
+     */
+    public CompiledHMM reload(Path path, boolean mapped) throws IOException {
+        return swap(mapped ? CompiledHMM.map(path) : CompiledHMM.load(path));
+    }
+
+    /**
+     * Train a new model from a pair of training files in the background and publish it when it is done, leaving the
+     * current model serving until then
+     *
+     * @param wordFile Path to word file, plain or gzipped
+     * @param tagFile  Path to tag file, plain or gzipped
+     * @param executor Executor to train on
+     * @return Future completing with the newly published model, or exceptionally if training failed (in which case the
+     * current model stays published)
+     */
+    public CompletableFuture<CompiledHMM> retrain(String wordFile, String tagFile, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            HMM hmm = new HMM();
+            try {
+                hmm.buildHMM(wordFile, tagFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            CompiledHMM model = hmm.compile();
+            swap(model);
+            return model;
+        }, executor);
+    }
+}
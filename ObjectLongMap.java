@@ -0,0 +1,98 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from objects to long counts. Entries sit in insertion order in dense key and value arrays,
+ * with a separate linear-probing table of entry indices, so adding to a key's count probes the table once and never
+ * boxes
+ *
+ * @param <K> Key type, which must have consistent equals and hashCode
+ */
+public class ObjectLongMap<K> {
+    private Object[] keys;      //key of entry i
+    private long[] values;      //value of entry i
+    private int[] table;        //open-addressing table holding (entry index + 1), 0 marks an empty slot
+    private int size;           //number of entries
+
+    /**
+     * Construct an empty map
+     */
+    public ObjectLongMap() {
+        keys = new Object[8];
+        values = new long[8];
+        table = new int[16];
+    }
+
+    /**
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i Entry index, from 0 until size() in insertion order
+     * @return Key of the entry
+     */
+    @SuppressWarnings("unchecked")
+    public K key(int i) {
+        return (K) keys[i];
+    }
+
+    /**
+     * @param i Entry index, from 0 until size() in insertion order
+     * @return Value of the entry
+     */
+    public long value(int i) {
+        return values[i];
+    }
+
+    /**
+     * Add to the value of a key, starting it from 0 if it has none
+     *
+     * @param key   Key to add to
+     * @param delta Amount to add
+     * @return The key's new value
+     */
+    public long add(K key, long delta) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (entry < 0) break;
+            if (keys[entry].equals(key)) return values[entry] += delta;
+        }
+        //new key, append an entry for it
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = delta;
+        table[slot] = ++size;
+        //keep the table at most half full so probe sequences stay short
+        if (size * 2 > table.length) rehash();
+        return delta;
+    }
+
+    /**
+     * @param key Key to hash
+     * @return The key's hash with its high bits spread down
+     */
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Double the table and reinsert every entry
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(keys[i]) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Input stream that reads its source ahead on a thread of its own, handing the bytes over in chunks through a bounded
+ * queue. Wrapped around a GZIPInputStream, inflating overlaps with whatever the reading thread does with the bytes
+ * (tokenizing, counting, decoding) instead of adding to it, while the queue bounds how far ahead it gets. Chunks are
+ * recycled, so a steady read allocates nothing. Read it from one thread only
+ */
+public class PrefetchInputStream extends InputStream {
+    static final int CHUNK_BYTES = 1 << 16;     //bytes per chunk
+    static final int DEPTH = 16;                //chunks in flight, bounding how far the source is read ahead
+    private static final int GZIP_MAGIC = 0x8B1F;   //first two bytes of a gzip file, read as little-endian
+    private final Chunk END = new Chunk(0);     //marks the end of the source, or that reading it failed
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(DEPTH + 1);   //chunks read, in order, then END
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(DEPTH);         //chunks ready to be refilled
+    private final InputStream source;   //stream being read ahead
+    private final Thread reader;        //reads the source into chunks
+    private volatile Throwable failure;     //what went wrong reading the source, reported after the chunks before it
+    private volatile boolean closed;        //whether close has been called
+    private Chunk current;              //chunk being consumed, or null
+    private int pos;                    //next byte of current
+    private boolean eof;                //whether END has been taken
+
+    /**
+     * Bytes of the source, and how many of them are filled in
+     */
+    private static class Chunk {
+        final byte[] buf;   //the bytes
+        int length;         //number of them filled in
+
+        /**
+         * @param size Capacity in bytes
+         */
+        Chunk(int size) {
+            buf = new byte[size];
+        }
+    }
+
+    /**
+     * Construct a stream and start reading its source ahead
+     *
+     * @param source Stream to read ahead, closed when it is done or when this stream is closed
+     */
+    public PrefetchInputStream(InputStream source) {
+        this.source = source;
+        for (int i = 0; i < DEPTH; i++) free.add(new Chunk(CHUNK_BYTES));
+        reader = new Thread(this::readAhead, "prefetch-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Open a corpus file for reading lines. A gzip file, recognized by its magic number rather than its name, is
+     * inflated on a thread of its own through a PrefetchInputStream; any other file is read as by a FileReader
+     *
+     * @param path Path to a plain or gzipped text file
+     * @return Reader over the file's lines, in the platform's default charset as FileReader reads them
+     * @throws IOException Possible IOException when opening the file
+     */
+    public static BufferedReader reader(String path) throws IOException {
+        int magic;
+        try (InputStream probe = new FileInputStream(path)) {
+            magic = probe.read() | probe.read() << 8;
+        }
+        if (magic != GZIP_MAGIC) return new BufferedReader(new FileReader(path));
+        InputStream file = new FileInputStream(path);
+        try {
+            return new BufferedReader(new InputStreamReader(new PrefetchInputStream(new GZIPInputStream(file, CHUNK_BYTES))), CHUNK_BYTES);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fill chunks from the source until it ends, fails, or this stream is closed. Whatever ends it, unless the stream
+     * was closed, END is queued so the consumer never waits forever
+     */
+    private void readAhead() {
+        try (InputStream in = source) {
+            while (true) {
+                Chunk chunk = free.take();
+                chunk.length = in.readNBytes(chunk.buf, 0, chunk.buf.length);
+                if (chunk.length > 0) filled.put(chunk);
+                if (chunk.length < chunk.buf.length) break;
+            }
+        } catch (InterruptedException e) {
+            //closed, nobody is reading any more
+        } catch (Throwable e) {
+            //anything, including an Error such as running out of memory inflating, is handed to the consumer
+            failure = e;
+        } finally {
+            //never blocks: the queue has room for every chunk and END
+            if (!closed) filled.add(END);
+        }
+    }
+
+    /**
+     * Make sure there is an unread byte in the current chunk, waiting for the next chunk if need be
+     *
+     * @return Whether there is one, false at the end of the source
+     * @throws IOException If reading the source failed, or the wait was interrupted
+     */
+    private boolean fill() throws IOException {
+        if (current != null && pos < current.length) return true;
+        if (eof) return false;
+        if (current != null) free.add(current);
+        current = null;
+        Chunk next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+        if (next == END) {
+            eof = true;
+            Throwable cause = failure;
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause != null) throw new IOException("Reading ahead failed", cause);
+            return false;
+        }
+        current = next;
+        pos = 0;
+        return true;
+    }
+
+    /**
+     * @return The next byte, or -1 at the end of the source
+     * @throws IOException If reading the source failed
+     */
+    @Override
+    public int read() throws IOException {
+        return fill() ? current.buf[pos++] & 0xFF : -1;
+    }
+
+    /**
+     * @param b   Buffer to read into
+     * @param off Index of the first byte to fill
+     * @param len Most bytes to read
+     * @return Number of bytes read, at most one chunk's worth, or -1 at the end of the source
+     * @throws IOException If reading the source failed
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @return Bytes that can be read without waiting for the reading thread
+     */
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - pos;
+    }
+
+    /**
+     * Stop reading ahead and close the source
+     */
+    @Override
+    public void close() {
+        closed = true;
+        eof = true;
+        current = null;
+        reader.interrupt();
+    }
+}
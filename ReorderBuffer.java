@@ -0,0 +1,77 @@
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded buffer that hands out items in sequence-number order, whatever order they were put in. Producers put item
+ * number seq once it is ready and block while seq is a full window ahead of the consumer; the consumer takes items
+ * 0, 1, 2, ... and blocks until the next one has arrived. Used to keep the output of parallel workers in input order
+ *
+ * @param <T> Item type
+ */
+public class ReorderBuffer<T> {
+    private final Object[] slots;   //item seq sits in slots[seq % capacity] until taken
+    private long next;              //sequence number of the next item to take
+    private Throwable failure;      //first failure reported by a producer, rethrown to the consumer
+
+    /**
+     * Construct an empty buffer
+     *
+     * @param capacity Largest number of items that may be waiting, i.e. how far producers may run ahead
+     */
+    public ReorderBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        slots = new Object[capacity];
+    }
+
+    /**
+     * Put an item, waiting until it fits in the window
+     *
+     * @param seq  Sequence number of the item, each used exactly once
+     * @param item The item, not null
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized void put(long seq, T item) throws InterruptedException {
+        if (item == null) throw new NullPointerException("Null item " + seq);
+        if (seq < next) throw new IllegalArgumentException("Item " + seq + " was already taken");
+        while (seq >= next + slots.length && failure == null) wait();
+        slots[(int) (seq % slots.length)] = item;
+        notifyAll();
+    }
+
+    /**
+     * Take the next item in sequence order, waiting until it has been put
+     *
+     * @return The item
+     * @throws InterruptedException If interrupted while waiting
+     * @throws ExecutionException   If a producer reported a failure before the item arrived
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T take() throws InterruptedException, ExecutionException {
+        int slot = (int) (next % slots.length);
+        while (slots[slot] == null) {
+            if (failure != null) throw new ExecutionException(failure);
+            wait();
+        }
+        T item = (T) slots[slot];
+        slots[slot] = null;
+        next++;
+        notifyAll();
+        return item;
+    }
+
+    /**
+     * Report that a producer failed, so the consumer stops waiting for its item and producers stop waiting for room
+     *
+     * @param cause What went wrong
+     */
+    public synchronized void fail(Throwable cause) {
+        if (failure == null) failure = cause;
+        notifyAll();
+    }
+
+    /**
+     * @return Sequence number of the next item to take, i.e. the number of items taken so far
+     */
+    public synchronized long next() {
+        return next;
+    }
+}
@@ -0,0 +1,547 @@
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Trains a model in bounded memory, however many distinct words and (tag, word) pairs the corpus has. Observations are
+ * buffered as packed (word, tag) keys, with their words interned into a vocabulary of the run being buffered, both
+ * grown up to the memory budget; when it is full the keys are sorted by word string and tag, collapsed into counts and
+ * spilled to a run file of (word, tag counts) records, and the run's vocabulary is dropped. At the end the runs are
+ * merged k ways (in several passes if there are many) into one run in word order, which numbers the words: the word
+ * vocabulary, its hash table and the emission tables are streamed from it into a model file that is then
+ * memory-mapped, the hash table filled in through a mapping of the file rather than on the heap. Only the transition
+ * counts, per-tag totals and the tag vocabulary stay on the heap, as they grow only with the tag set. The model file
+ * is read back as one buffer, so it must fit in 2GB; finish sizes it first and refuses a model that would not fit.
+ *
+ * The result has the same tags, tag IDs and scores CompiledHMM.compile builds from a CountTable of the same corpus,
+ * and so decodes the same, but its words are numbered in sorted order rather than in the order they were first seen
+ *
+ * Usage: java SpillingTrainer wordFile tagFile modelFile [--budget-mb N]
+ */
+public class SpillingTrainer implements AutoCloseable {
+    static final int FAN_IN = 64;           //most runs merged in one pass
+    static final int MIN_PENDING = 1 << 10; //smallest observation buffer, however small the budget
+    final Vocabulary tags = new Vocabulary();       //tag -> tag ID, with '#' always interned as 0
+    final double U;                 //unseen word penalty of the model
+    final long budgetBytes;         //most bytes of pending observations and their words before spilling a run
+    final Path dir;                 //directory the runs are spilled to
+    int spills;                     //runs spilled so far
+    private final Tokenizer wordTokenizer = new Tokenizer(true);    //tokenizes word lines into IDs of runWords
+    private final Tokenizer tagTokenizer = new Tokenizer(false);    //tokenizes tag lines into tag IDs
+    private Vocabulary runWords = new Vocabulary(); //word -> ID within the pending run, replaced at every spill
+    private long[] trans;           //transition counts in form [currTag * tagCapacity + nextTag]
+    private long[] tagFreq;         //tag ID -> observations of the tag
+    private int tagCapacity;        //row length of trans, grown as new tags appear
+    private long[] pending;         //observations not yet spilled, as run word ID << 32 | tag ID
+    private int numPending;         //number of pending observations
+    private final ArrayList<Run> runs = new ArrayList<>();  //runs spilled or merged and not yet merged further
+
+    /**
+     * A run file of records in ascending word order, each a word (its length, then its chars), the number of tags that
+     * emitted it, then each (tag ID, count) in ascending tag ID order
+     */
+    private static class Run {
+        final Path path;        //the file
+        final long words;       //number of records, one per distinct word
+        final long chars;       //number of characters of every word together
+        final long emissions;   //number of (tag, count) pairs of every record together
+
+        /**
+         * @param path      The file
+         * @param words     Number of records
+         * @param chars     Number of characters of every word together
+         * @param emissions Number of (tag, count) pairs of every record together
+         */
+        Run(Path path, long words, long chars, long emissions) {
+            this.path = path;
+            this.words = words;
+            this.chars = chars;
+            this.emissions = emissions;
+        }
+    }
+
+    /**
+     * Writes a run one record at a time
+     */
+    private static class RunWriter implements Closeable {
+        final Path path;            //the run's file
+        final DataOutputStream out; //stream writing it
+        long words, chars, emissions;   //what has been written so far
+
+        /**
+         * Create a run file
+         *
+         * @param path File to write
+         * @throws IOException Possible IOException when opening
+         */
+        RunWriter(Path path) throws IOException {
+            this.path = path;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        }
+
+        /**
+         * Start the next record, which the given number of tag calls must complete
+         *
+         * @param word    Word of the record, after that of the record before
+         * @param numTags Number of tags that emitted it
+         * @throws IOException Possible IOException when writing
+         */
+        void word(String word, int numTags) throws IOException {
+            out.writeInt(word.length());
+            out.writeChars(word);
+            out.writeInt(numTags);
+            words++;
+            chars += word.length();
+            emissions += numTags;
+        }
+
+        /**
+         * @param tag   Tag ID, after that of the tag before in the record
+         * @param count Number of times the tag emitted the record's word
+         * @throws IOException Possible IOException when writing
+         */
+        void tag(int tag, long count) throws IOException {
+            out.writeInt(tag);
+            out.writeLong(count);
+        }
+
+        /**
+         * @return The run written so far
+         */
+        Run run() {
+            return new Run(path, words, chars, emissions);
+        }
+
+        /**
+         * @throws IOException Possible IOException when closing
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a run one record at a time, during a merge or while streaming it into a model file
+     */
+    private static class RunReader implements Closeable {
+        final DataInputStream in;   //the run's file
+        long remaining;             //records not yet read
+        String word;                //word of the current record
+        int tags;                   //tags of the current record not yet read
+        int tag;                    //current tag ID
+        long count;                 //count of the current tag
+
+        /**
+         * Open a run, positioned before its first record
+         *
+         * @param run Run to read
+         * @throws IOException Possible IOException when opening
+         */
+        RunReader(Run run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path), 1 << 16));
+            remaining = run.words;
+        }
+
+        /**
+         * Move to the next record, skipping whatever is left of the current one
+         *
+         * @return Whether there was another record, now the current one
+         * @throws IOException Possible IOException when reading
+         */
+        boolean advance() throws IOException {
+            while (tags > 0) nextTag();
+            if (remaining == 0) return false;
+            remaining--;
+            char[] chars = new char[in.readInt()];
+            for (int i = 0; i < chars.length; i++) chars[i] = in.readChar();
+            word = new String(chars);
+            tags = in.readInt();
+            return true;
+        }
+
+        /**
+         * Read the current record's next tag and count
+         *
+         * @throws IOException Possible IOException when reading
+         */
+        void nextTag() throws IOException {
+            tags--;
+            tag = in.readInt();
+            count = in.readLong();
+        }
+
+        /**
+         * @throws IOException Possible IOException when closing
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Construct a trainer
+     *
+     * @param U           Unseen word penalty of the model
+     * @param budgetBytes Bytes of observations and their words to buffer before spilling a run, allocated as needed
+     * @param dir         Existing directory to spill runs to
+     */
+    public SpillingTrainer(double U, long budgetBytes, Path dir) {
+        this.U = U;
+        this.dir = dir;
+        //leave room for the smallest buffer and the words of a run, or it would spill every sentence
+        this.budgetBytes = Math.max(budgetBytes, 16L * MIN_PENDING);
+        pending = new long[MIN_PENDING];
+        tags.add("#");
+        tagCapacity = 16;
+        trans = new long[tagCapacity * tagCapacity];
+        tagFreq = new long[tagCapacity];
+    }
+
+    /**
+     * Tokenize and count one pair of training lines, the same way CountTable does
+     *
+     * @param wordLine Line of training words
+     * @param tagLine  Line of matching training tags
+     * @throws IOException Possible IOException when spilling a run
+     */
+    public void addSentence(CharSequence wordLine, CharSequence tagLine) throws IOException {
+        int n = wordTokenizer.tokenize(wordLine, runWords, true);
+        int numTags = tagTokenizer.tokenize(tagLine, tags, true);
+        if (numTags < n) throw new IllegalArgumentException("Training sentence has " + n + " words but only " + numTags + " tags");
+        fitTags();
+        if (numPending + n > pending.length && !grow(numPending + n)) {
+            //the budget is spent: spill the sentences before this one, then tokenize it again into the next run's words
+            if (numPending > 0) {
+                spill();
+                n = wordTokenizer.tokenize(wordLine, runWords, true);
+            }
+            if (n > pending.length) pending = new long[n];
+        }
+        int[] wordIds = wordTokenizer.ids(), tagIds = tagTokenizer.ids();
+        int prevTag = 0;
+        for (int i = 0; i < n; i++) {
+            int tag = tagIds[i];
+            trans[prevTag * tagCapacity + tag]++;
+            tagFreq[tag]++;
+            pending[numPending++] = (long) wordIds[i] << 32 | tag;
+            prevTag = tag;
+        }
+        //the run's words count against the budget as well
+        if (8L * pending.length + runWords.bytes() > budgetBytes) spill();
+    }
+
+    /**
+     * Grow the observation buffer to hold at least the given number, if the budget has room for it
+     *
+     * @param needed Observations the buffer must hold
+     * @return Whether it now holds them
+     */
+    private boolean grow(int needed) {
+        long room = (budgetBytes - runWords.bytes()) / 8;
+        long length = Math.min(Math.min(Math.max(needed, 2L * pending.length), room), Integer.MAX_VALUE - 8);
+        if (length < needed) return false;
+        pending = Arrays.copyOf(pending, (int) length);
+        return true;
+    }
+
+    /**
+     * Merge every run, write the model to a file and memory-map it. Run files are deleted as they are merged
+     *
+     * @param modelFile File to write the model to, replaced if it exists
+     * @return The mapped model
+     * @throws IOException Possible IOException when reading runs or writing the model, or if the model is too large
+     *                     for one model file
+     */
+    public CompiledHMM finish(Path modelFile) throws IOException {
+        if (numPending > 0 || runs.isEmpty()) spill();
+        //merge the oldest runs first while there are too many to merge at once
+        while (runs.size() > 1) {
+            int group = Math.min(FAN_IN, runs.size());
+            Run merged = merge(new ArrayList<>(runs.subList(0, group)));
+            runs.subList(0, group).clear();
+            runs.add(merged);
+        }
+        Run merged = runs.get(0);
+        int numTags = tags.size();
+        double[] transScores = new double[numTags * numTags];
+        int[] succStart = new int[numTags + 1];
+        int[] succ = new int[numTags * numTags];
+        CompiledHMM.normalizeTransitions(trans, tagCapacity, numTags, transScores, succStart, succ);
+        int numSucc = succStart[numTags];
+        //size the file before writing any of it, in the layout of CompiledHMM.writeHead and save
+        int tableLength = Vocabulary.tableCapacity((int) Math.min(merged.words, Integer.MAX_VALUE));
+        long end = Vocabulary.writeEnd(tags.writeEnd(24), merged.words, merged.chars, tableLength);
+        end = ModelFile.align(end) + 8L * numTags * numTags;
+        end = ModelFile.align(end) + 4L * (numTags + 1);
+        end = ModelFile.align(end) + 4L * numSucc;
+        end = ModelFile.align(end) + 4L * (merged.words + 1);
+        end = ModelFile.align(end) + 4L * merged.emissions;
+        end = ModelFile.align(end) + 8L * merged.emissions;
+        if (end > Integer.MAX_VALUE) throw new IOException("Model too large for one model file (" + end + " bytes): " + modelFile);
+        boolean written = false;
+        try (FileChannel channel = FileChannel.open(modelFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ModelFile.Writer out = new ModelFile.Writer(channel);
+            out.putInt(ModelFile.MAGIC);
+            out.putInt(ModelFile.VERSION);
+            out.putDouble(U);
+            out.putInt(numSucc);
+            out.putInt((int) merged.emissions);
+            tags.write(out);
+            //the word vocabulary as Vocabulary.write lays it out, numbered in the merged run's order: characters, where
+            //each word starts, then a hash table left empty for now
+            out.putInt((int) merged.words);
+            out.putInt((int) merged.chars);
+            out.putInt(tableLength);
+            out.align();
+            try (RunReader in = new RunReader(merged)) {
+                while (in.advance()) {
+                    for (int i = 0; i < in.word.length(); i++) out.putChar(in.word.charAt(i));
+                }
+            }
+            out.align();
+            out.putInt(0);
+            try (RunReader in = new RunReader(merged)) {
+                for (int offset = 0; in.advance(); ) out.putInt(offset += in.word.length());
+            }
+            out.align();
+            long tableStart = out.position;
+            for (int i = 0; i < tableLength; i++) out.putInt(0);
+            out.putDoubles(DoubleBuffer.wrap(transScores), transScores.length);
+            out.putInts(IntBuffer.wrap(succStart), numTags + 1);
+            out.putInts(IntBuffer.wrap(succ), numSucc);
+            //stream the merged counts three more times: where each word's emissions start, their tags, their scores
+            out.align();
+            out.putInt(0);
+            try (RunReader in = new RunReader(merged)) {
+                for (int emit = 0; in.advance(); ) out.putInt(emit += in.tags);
+            }
+            out.align();
+            try (RunReader in = new RunReader(merged)) {
+                while (in.advance()) {
+                    while (in.tags > 0) {
+                        in.nextTag();
+                        out.putInt(in.tag);
+                    }
+                }
+            }
+            out.align();
+            try (RunReader in = new RunReader(merged)) {
+                while (in.advance()) {
+                    while (in.tags > 0) {
+                        in.nextTag();
+                        out.putDouble(Math.log((double) in.count / tagFreq[in.tag]));
+                    }
+                }
+            }
+            out.flush();
+            //fill in the hash table through a mapping of the file, inserting the words in ID order as Vocabulary does
+            IntBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, tableStart, 4L * tableLength)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            int mask = tableLength - 1;
+            try (RunReader in = new RunReader(merged)) {
+                for (int id = 0; in.advance(); id++) {
+                    int slot = Vocabulary.hash(in.word) & mask;
+                    while (table.get(slot) != 0) slot = (slot + 1) & mask;
+                    table.put(slot, id + 1);
+                }
+            }
+            written = true;
+        } finally {
+            //a partly written model would fail to load
+            if (!written) Files.deleteIfExists(modelFile);
+        }
+        close();
+        return CompiledHMM.map(modelFile);
+    }
+
+    /**
+     * Sort the pending observations by word string and tag, collapse them into counts and write them out as a run,
+     * then start the next run with no words
+     *
+     * @throws IOException Possible IOException when writing the run
+     */
+    private void spill() throws IOException {
+        //rank the run's words in string order and rewrite the keys with the ranks, so sorting them sorts by string
+        String[] sorted = new String[runWords.size()];
+        for (int w = 0; w < sorted.length; w++) sorted[w] = runWords.get(w);
+        Arrays.sort(sorted);
+        int[] rank = new int[sorted.length];
+        for (int r = 0; r < sorted.length; r++) rank[runWords.id(sorted[r])] = r;
+        for (int i = 0; i < numPending; i++) pending[i] = (long) rank[(int) (pending[i] >>> 32)] << 32 | (int) pending[i];
+        Arrays.sort(pending, 0, numPending);
+        Path path = Files.createTempFile(dir, "run", ".bin");
+        Run run;
+        try (RunWriter out = new RunWriter(path)) {
+            for (int i = 0; i < numPending; ) {
+                //every observation of one word, then each distinct tag among them with its count
+                int word = (int) (pending[i] >>> 32), j = i, numTags = 0;
+                while (j < numPending && (int) (pending[j] >>> 32) == word) {
+                    if (j == i || pending[j] != pending[j - 1]) numTags++;
+                    j++;
+                }
+                out.word(sorted[word], numTags);
+                for (int k = i; k < j; ) {
+                    long key = pending[k];
+                    int l = k;
+                    while (l < j && pending[l] == key) l++;
+                    out.tag((int) key, l - k);
+                    k = l;
+                }
+                i = j;
+            }
+            run = out.run();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        runs.add(run);
+        numPending = 0;
+        runWords = new Vocabulary();
+        spills++;
+    }
+
+    /**
+     * Merge runs into one, summing the counts of each word's tags, and delete them
+     *
+     * @param group Runs to merge
+     * @return The merged run
+     * @throws IOException Possible IOException when reading or writing runs
+     */
+    private Run merge(ArrayList<Run> group) throws IOException {
+        Path path = Files.createTempFile(dir, "merged", ".bin");
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparing((RunReader r) -> r.word));
+        ArrayList<RunReader> readers = new ArrayList<>();
+        long[] counts = new long[tags.size()];  //tag ID -> count of the word being merged, 0 if none yet
+        int[] seen = new int[tags.size()];      //tag IDs with a count for the word being merged
+        Run merged = null;
+        try (RunWriter out = new RunWriter(path)) {
+            for (Run run : group) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                //take the smallest word from every run that has it, summing its tags' counts
+                String word = queue.peek().word;
+                int numSeen = 0;
+                while (!queue.isEmpty() && queue.peek().word.equals(word)) {
+                    RunReader reader = queue.poll();
+                    while (reader.tags > 0) {
+                        reader.nextTag();
+                        if (counts[reader.tag] == 0) seen[numSeen++] = reader.tag;
+                        counts[reader.tag] += reader.count;
+                    }
+                    if (reader.advance()) queue.add(reader);
+                }
+                Arrays.sort(seen, 0, numSeen);
+                out.word(word, numSeen);
+                for (int k = 0; k < numSeen; k++) {
+                    out.tag(seen[k], counts[seen[k]]);
+                    counts[seen[k]] = 0;
+                }
+            }
+            merged = out.run();
+        } finally {
+            for (RunReader reader : readers) reader.close();
+            if (merged == null) Files.deleteIfExists(path);
+        }
+        for (Run run : group) Files.delete(run.path);
+        return merged;
+    }
+
+    /**
+     * Grow the transition matrix and tag totals until every interned tag fits in them
+     */
+    private void fitTags() {
+        while (tags.size() > tagCapacity) {
+            int capacity = tagCapacity * 2;
+            long[] grown = new long[capacity * capacity];
+            for (int t = 0; t < tagCapacity; t++) System.arraycopy(trans, t * tagCapacity, grown, t * capacity, tagCapacity);
+            trans = grown;
+            tagFreq = Arrays.copyOf(tagFreq, capacity);
+            tagCapacity = capacity;
+        }
+    }
+
+    /**
+     * Delete every run file still on disk
+     *
+     * @throws IOException Possible IOException when deleting
+     */
+    @Override
+    public void close() throws IOException {
+        for (Run run : runs) Files.deleteIfExists(run.path);
+        runs.clear();
+    }
+
+    /**
+     * Train a model from a pair of training files, plain or gzipped, spilling to a temporary directory that is removed
+     * afterwards
+     *
+     * @param wordFile    Path to word file, plain or gzipped
+     * @param tagFile     Path to tag file, plain or gzipped
+     * @param U           Unseen word penalty of the model
+     * @param budgetBytes Bytes of observations and their words to buffer before spilling a run
+     * @param modelFile   File to write the model to
+     * @return The mapped model
+     * @throws IOException Possible IOException when reading, spilling or writing
+     */
+    public static CompiledHMM train(String wordFile, String tagFile, double U, long budgetBytes, Path modelFile) throws IOException {
+        Path dir = Files.createTempDirectory("hmm-spill");
+        try (SpillingTrainer trainer = new SpillingTrainer(U, budgetBytes, dir);
+             BufferedReader wordIn = PrefetchInputStream.reader(wordFile);
+             BufferedReader tagIn = PrefetchInputStream.reader(tagFile)) {
+            String wordLine, tagLine;
+            while ((wordLine = wordIn.readLine()) != null && (tagLine = tagIn.readLine()) != null) {
+                trainer.addSentence(wordLine, tagLine);
+            }
+            return trainer.finish(modelFile);
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Train a model in bounded memory and save it
+     *
+     * @param args Command-line arguments, see the class comment
+     * @throws IOException Possible IOException when reading, spilling or writing
+     */
+    public static void main(String[] args) throws IOException {
+        String usage = "Usage: java SpillingTrainer wordFile tagFile modelFile [--budget-mb N]";
+        if (args.length < 3) HMM.exitUsage("No training or model files given", usage);
+        long budgetMb = 256;
+        try {
+            for (int i = 3; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--budget-mb":
+                        HMM.requireValues(args, i, 1, usage);
+                        budgetMb = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        HMM.exitUsage("Unknown option " + args[i], usage);
+                }
+            }
+        } catch (NumberFormatException e) {
+            HMM.exitUsage("Not a number: " + e.getMessage(), usage);
+        }
+        if (budgetMb < 1 || budgetMb > Long.MAX_VALUE >> 20) HMM.exitUsage("Budget out of range: " + budgetMb + " MB", usage);
+        long budget = budgetMb << 20;
+        long start = System.nanoTime();
+        CompiledHMM model = train(args[0], args[1], new HMM().U, budget, Paths.get(args[2]));
+        System.out.printf("Trained %d tags, %,d words in %.2f s%n", model.numTags - 1, model.words.size(), (System.nanoTime() - start) / 1e9);
+    }
+}
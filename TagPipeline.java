@@ -0,0 +1,138 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Headless tagging pipeline: sentences in, one line of tags per sentence out, in input order. A reader thread cuts the
+ * input into numbered batches for a worker pool, the workers put their tagged batches into a ReorderBuffer, and the
+ * calling thread writes them out in order. At most a window of batches is ever in flight, so a slow consumer of the
+ * output holds back the reader instead of filling memory. A batch is also cut whenever the input has nothing more
+ * ready, so a trickle of lines flows straight through
+ */
+public class TagPipeline {
+    final CompiledHMM model;        //model to tag with
+    final ExecutorService workers;  //pool decoding the batches
+    final int window;               //most batches read but not yet written
+    DecodeOptions options = DecodeOptions.EXHAUSTIVE;   //pruning settings for every sentence
+    private final ConcurrentLinkedQueue<ViterbiDecoder> decoders = new ConcurrentLinkedQueue<>();  //idle decoders, at most one per worker
+    static final int BATCH_LINES = 256;         //most lines per batch
+    private static final String END = new String("end of input");  //marks the end of the output, compared by identity
+
+    /**
+     * Construct a pipeline
+     *
+     * @param model   Model to tag with
+     * @param workers Pool to decode on
+     * @param window  Most batches in flight at once
+     */
+    public TagPipeline(CompiledHMM model, ExecutorService workers, int window) {
+        if (window < 1) throw new IllegalArgumentException("Window must be positive: " + window);
+        this.model = model;
+        this.workers = workers;
+        this.window = window;
+    }
+
+    /**
+     * Tag every line of the input, writing each line's tags separated by spaces, until the input ends
+     *
+     * @param in  Sentences, one per line
+     * @param out Writer for the tags, flushed after each batch but not closed
+     * @return Number of lines tagged
+     * @throws IOException Possible IOException when reading or writing
+     */
+    public long run(BufferedReader in, Writer out) throws IOException {
+        ReorderBuffer<String> done = new ReorderBuffer<>(window + 1);
+        Semaphore inFlight = new Semaphore(window);
+        long[] lines = new long[1];
+        Thread reader = new Thread(() -> read(in, done, inFlight, lines), "pipeline-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            String batch;
+            while ((batch = done.take()) != END) {
+                out.write(batch);
+                out.flush();
+                inFlight.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while tagging");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException("Tagging failed", e.getCause());
+        } finally {
+            reader.interrupt();
+        }
+        return lines[0];
+    }
+
+    /**
+     * Read the input into batches and hand them to the workers, then mark the end of the output
+     *
+     * @param in       Sentences, one per line
+     * @param done     Buffer the tagged batches go to
+     * @param inFlight Permits for batches in flight, one taken per batch and given back once it is written
+     * @param lines    Receives the number of lines read
+     */
+    private void read(BufferedReader in, ReorderBuffer<String> done, Semaphore inFlight, long[] lines) {
+        try {
+            long seq = 0, count = 0;
+            String[] batch = new String[BATCH_LINES];
+            int n = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                batch[n++] = line;
+                count++;
+                //cut the batch when it is full or nothing more is waiting to be read
+                if (n == BATCH_LINES || !in.ready()) {
+                    inFlight.acquire();
+                    submit(seq++, batch, n, done);
+                    batch = new String[BATCH_LINES];
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                inFlight.acquire();
+                submit(seq++, batch, n, done);
+            }
+            lines[0] = count;
+            done.put(seq, END);
+        } catch (Throwable e) {
+            done.fail(e);
+        }
+    }
+
+    /**
+     * Hand a batch to the workers
+     *
+     * @param seq   Sequence number of the batch
+     * @param batch Lines of the batch
+     * @param n     Number of lines
+     * @param done  Buffer to put the tagged batch in
+     */
+    private void submit(long seq, String[] batch, int n, ReorderBuffer<String> done) {
+        workers.execute(() -> {
+            try {
+                //reuse an idle decoder, kept by the pipeline rather than the worker threads, which may outlive it
+                ViterbiDecoder decoder = decoders.poll();
+                if (decoder == null) decoder = new ViterbiDecoder(model);
+                StringBuilder sb = new StringBuilder();
+                for (int s = 0; s < n; s++) {
+                    int length = decoder.decodeLine(batch[s], options);
+                    int[] tags = decoder.tags();
+                    for (int i = 0; i < length; i++) {
+                        if (i > 0) sb.append(' ');
+                        sb.append(model.tagName(tags[i]));
+                    }
+                    sb.append('\n');
+                }
+                decoders.add(decoder);
+                done.put(seq, sb.toString());
+            } catch (Throwable e) {
+                done.fail(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,337 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded HTTP tagging service on the JDK's com.sun.net.httpserver, sharing one immutable model between every
+ * request through a ModelHolder, so the model can be hot-swapped under traffic. Each request gets its own virtual
+ * thread when the JDK has them (21+), or a thread from a cached pool otherwise. Decoders are pooled by the ModelHolder
+ * rather than kept per thread, since a virtual thread lives for one request only. Single-sentence requests can
+ * optionally be coalesced into micro-batches by a BatchScheduler
+ *
+ * Endpoints:
+ * GET  /tag?sentence=...   tags one sentence: {"tags":["DET","N"]}
+ * POST /tag                tags each line of a UTF-8 text body: {"tags":[["DET","N"],["PRO","V"]]}
+ * GET  /stats              request and sentence counts, and request latency percentiles in microseconds
+ *
+ * Usage: java TaggerServer (--model modelFile | --train wordFile tagFile) [--port N] [--batch N --wait-us N]
+ */
+public class TaggerServer {
+    final ModelHolder models;           //model every request decodes with
+    final HttpServer server;            //the HTTP server
+    final ExecutorService executor;     //runs each request's handler
+    DecodeOptions options = DecodeOptions.EXHAUSTIVE;   //pruning settings for every sentence
+    BatchScheduler scheduler;           //batches single-sentence requests, or null to decode them inline
+    final LatencyHistogram latency = new LatencyHistogram();    //time from a request arriving to its response sent
+    final LongAdder sentences = new LongAdder();        //sentences tagged
+    final LongAdder errors = new LongAdder();           //requests answered with an error
+
+    /**
+     * Construct a server, not yet started
+     *
+     * @param models Holder of the model to serve
+     * @param port   Port to listen on, 0 for any free port
+     * @throws IOException Possible IOException when binding the port
+     */
+    public TaggerServer(ModelHolder models, int port) throws IOException {
+        this.models = models;
+        executor = requestExecutor();
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/tag", this::tag);
+        server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * @return A virtual-thread-per-task executor if this JDK has one, else a cached thread pool
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            //looked up reflectively so the code still compiles and runs on JDKs without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Start serving requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop serving, letting requests in progress finish for up to a second
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        if (scheduler != null) scheduler.close();
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Handle /tag: tag the sentence in the query, or every line of the body
+     *
+     * @param exchange The request
+     * @throws IOException Possible IOException when reading the request or writing the response
+     */
+    void tag(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (scheduler != null && !exchange.getRequestMethod().equals("POST")) {
+                tagScheduled(exchange);
+                return;
+            }
+            //read the model once, so the whole request sees one model even if it is swapped meanwhile
+            CompiledHMM model = models.get();
+            ViterbiDecoder decoder = models.borrow(model);
+            StringBuilder json = new StringBuilder("{\"tags\":");
+            try {
+                if (exchange.getRequestMethod().equals("POST")) {
+                    byte[] body = exchange.getRequestBody().readAllBytes();
+                    json.append('[');
+                    int count = 0;
+                    for (int from = 0; from < body.length; ) {
+                        int to = from;
+                        while (to < body.length && body[to] != '\n') to++;
+                        int end = to > from && body[to - 1] == '\r' ? to - 1 : to;
+                        if (count++ > 0) json.append(',');
+                        int length = decoder.decodeLine(body, from, end, options);
+                        appendTags(json, model, decoder.tags(), length);
+                        from = to + 1;
+                    }
+                    json.append(']');
+                    sentences.add(count);
+                } else {
+                    String sentence = queryParameter(exchange, "sentence");
+                    if (sentence == null) {
+                        error(exchange, 400, "Missing sentence parameter");
+                        return;
+                    }
+                    int length = decoder.decodeLine(sentence, options);
+                    appendTags(json, model, decoder.tags(), length);
+                    sentences.increment();
+                }
+            } finally {
+                models.release(decoder);
+            }
+            respond(exchange, 200, json.append('}'));
+        } catch (RuntimeException e) {
+            error(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Tag the sentence in the query through the scheduler
+     *
+     * @param exchange The request
+     * @throws IOException Possible IOException when writing the response
+     */
+    private void tagScheduled(HttpExchange exchange) throws IOException {
+        String sentence = queryParameter(exchange, "sentence");
+        if (sentence == null) {
+            error(exchange, 400, "Missing sentence parameter");
+            return;
+        }
+        ArrayList<String> tags;
+        try {
+            tags = scheduler.submit(sentence).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error(exchange, 503, "Interrupted");
+            return;
+        } catch (ExecutionException e) {
+            error(exchange, 503, String.valueOf(e.getCause()));
+            return;
+        }
+        sentences.increment();
+        StringBuilder json = new StringBuilder("{\"tags\":[");
+        for (int i = 0; i < tags.size(); i++) {
+            if (i > 0) json.append(',');
+            appendString(json, tags.get(i));
+        }
+        respond(exchange, 200, json.append("]}"));
+    }
+
+    /**
+     * Handle /stats: report counts and latency percentiles
+     *
+     * @param exchange The request
+     * @throws IOException Possible IOException when writing the response
+     */
+    void stats(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"requests\":").append(latency.count())
+                .append(",\"sentences\":").append(sentences.sum())
+                .append(",\"errors\":").append(errors.sum());
+        double[] fractions = {0.5, 0.9, 0.99, 0.999};
+        String[] names = {"p50", "p90", "p99", "p999"};
+        for (int i = 0; i < fractions.length; i++) {
+            json.append(",\"").append(names[i]).append("_us\":").append(latency.percentile(fractions[i]) / 1000);
+        }
+        json.append(",\"max_us\":").append(latency.percentile(1.0) / 1000);
+        if (scheduler != null) json.append(",\"mean_batch\":").append(scheduler.meanBatchSize());
+        json.append('}');
+        respond(exchange, 200, json);
+        exchange.close();
+    }
+
+    /**
+     * Append a JSON array of tag names
+     *
+     * @param json   JSON being built
+     * @param model  Model the tag IDs belong to
+     * @param tags   Tag IDs
+     * @param length Number of tag IDs, 0 if the sentence could not be tagged
+     */
+    private static void appendTags(StringBuilder json, CompiledHMM model, int[] tags, int length) {
+        json.append('[');
+        for (int i = 0; i < length; i++) {
+            if (i > 0) json.append(',');
+            appendString(json, model.tagName(tags[i]));
+        }
+        json.append(']');
+    }
+
+    /**
+     * Append a JSON string literal
+     *
+     * @param json JSON being built
+     * @param s    String to quote and escape
+     */
+    static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    /**
+     * @param exchange The request
+     * @param name     Query parameter name
+     * @return The parameter's URL-decoded value, or null if absent
+     */
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Send an error as JSON
+     *
+     * @param exchange The request
+     * @param status   HTTP status
+     * @param message  What went wrong
+     * @throws IOException Possible IOException when writing the response
+     */
+    private void error(HttpExchange exchange, int status, String message) throws IOException {
+        errors.increment();
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        respond(exchange, status, json.append('}'));
+    }
+
+    /**
+     * Send a JSON response
+     *
+     * @param exchange The request
+     * @param status   HTTP status
+     * @param json     Response body
+     * @throws IOException Possible IOException when writing the response
+     */
+    private static void respond(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Load or train a model and serve it until the process is killed
+     *
+     * @param args Command-line arguments, see the class comment
+     * @throws IOException Possible IOException when reading the model or training files, or binding the port
+     */
+    public static void main(String[] args) throws IOException {
+        String usage = "Usage: java TaggerServer (--model modelFile | --train wordFile tagFile) [--port N] [--batch N --wait-us N]";
+        CompiledHMM model = null;
+        int port = 8080, batch = 0;
+        long waitNanos = 200_000;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--model":
+                        HMM.requireValues(args, i, 1, usage);
+                        model = CompiledHMM.map(Paths.get(args[++i]));
+                        break;
+                    case "--train":
+                        HMM.requireValues(args, i, 2, usage);
+                        HMM hmm = new HMM();
+                        hmm.buildHMM(args[i + 1], args[i + 2]);
+                        model = hmm.compile();
+                        i += 2;
+                        break;
+                    case "--port":
+                        HMM.requireValues(args, i, 1, usage);
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--batch":
+                        HMM.requireValues(args, i, 1, usage);
+                        batch = Integer.parseInt(args[++i]);
+                        break;
+                    case "--wait-us":
+                        HMM.requireValues(args, i, 1, usage);
+                        waitNanos = Long.parseLong(args[++i]) * 1000;
+                        break;
+                    default:
+                        HMM.exitUsage("Unknown option " + args[i], usage);
+                }
+            }
+        } catch (NumberFormatException e) {
+            HMM.exitUsage("Not a number: " + e.getMessage(), usage);
+        }
+        if (model == null) HMM.exitUsage("No model given", usage);
+        if (port < 0 || batch < 0 || waitNanos < 0) HMM.exitUsage("Port, batch and wait must not be negative", usage);
+        ModelHolder models = new ModelHolder(model);
+        TaggerServer server = new TaggerServer(models, port);
+        if (batch > 0) {
+            server.scheduler = new BatchScheduler(models, batch, waitNanos, 1 << 16,
+                    Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        }
+        server.start();
+        System.out.println("Tagging on http://localhost:" + server.port() + "/tag");
+    }
+}
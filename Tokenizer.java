@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a line into tokens exactly like line.toLowerCase().trim().split(" ") (or line.trim().split(" ") for tags),
+ * but resolves every token straight to its Vocabulary ID from a reusable character buffer instead of building an
+ * array of Strings. ASCII tokens are lowercased in place; only tokens with other characters fall back to String
+ * lowercasing. A tokenizer reuses its buffers, so use one per thread
+ */
+public class Tokenizer {
+    final boolean lowercase;    //whether tokens are lowercased (words) or kept as they are (tags)
+    private char[] token;       //characters of the token being resolved
+    private int[] ids;          //IDs of the tokens of the last line
+
+    /**
+     * Construct a tokenizer
+     *
+     * @param lowercase Whether to lowercase tokens, as is done for words but not for tags
+     */
+    public Tokenizer(boolean lowercase) {
+        this.lowercase = lowercase;
+        token = new char[64];
+        ids = new int[64];
+    }
+
+    /**
+     * @return IDs of the tokens of the last tokenized line, valid up to the count it returned
+     */
+    public int[] ids() {
+        return ids;
+    }
+
+    /**
+     * Tokenize a line held as characters
+     *
+     * @param line  Line to tokenize
+     * @param vocab Vocabulary to resolve the tokens in
+     * @param add   Whether to add unseen tokens to vocab (training) or give them ID -1 (decoding)
+     * @return Number of tokens, whose IDs are in ids()
+     */
+    public int tokenize(CharSequence line, Vocabulary vocab, boolean add) {
+        //trim whitespace and control characters from both ends, as String.trim does
+        int from = 0, to = line.length();
+        while (from < to && line.charAt(from) <= ' ') from++;
+        while (to > from && line.charAt(to - 1) <= ' ') to--;
+        return tokenize(line, from, to, vocab, add);
+    }
+
+    /**
+     * Tokenize a line of correct test tags exactly like line.split(" "), untrimmed, as testOnFiles reads them: leading
+     * spaces give empty tokens, other whitespace stays part of its token, and only trailing empty tokens are dropped
+     *
+     * @param line  Line to tokenize
+     * @param vocab Vocabulary to resolve the tokens in, unseen tokens getting ID -1
+     * @return Number of tokens, whose IDs are in ids()
+     */
+    public int split(CharSequence line, Vocabulary vocab) {
+        int to = line.length();
+        while (to > 0 && line.charAt(to - 1) == ' ') to--;
+        //a line of nothing but spaces splits into nothing, while an empty line is one empty token
+        if (to == 0 && line.length() > 0) return 0;
+        return tokenize(line, 0, to, vocab, false);
+    }
+
+    /**
+     * Tokenize a range of a line held as characters
+     *
+     * @param line  Line to tokenize
+     * @param from  Index of the range's first character
+     * @param to    Index just past the range's last character
+     * @param vocab Vocabulary to resolve the tokens in
+     * @param add   Whether to add unseen tokens to vocab or give them ID -1
+     * @return Number of tokens, whose IDs are in ids()
+     */
+    private int tokenize(CharSequence line, int from, int to, Vocabulary vocab, boolean add) {
+        int count = 0;
+        //every single space ends a token, so runs of spaces give empty tokens just like split(" ")
+        for (int start = from; ; ) {
+            int end = start, length = 0;
+            boolean ascii = true;
+            for (; end < to; end++) {
+                char c = line.charAt(end);
+                if (c == ' ') break;
+                if (c >= 0x80) ascii = false;
+                if (length == token.length) grow();
+                token[length++] = lowercase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+            }
+            if (!ascii && lowercase) length = fallback(line.subSequence(start, end).toString());
+            count = resolve(count, vocab, add, length);
+            if (end >= to) return count;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Tokenize a line held as UTF-8 bytes, without decoding it into a String
+     *
+     * @param line  Buffer holding the line
+     * @param from  Index of the line's first byte
+     * @param to    Index just past the line's last byte, a trailing line terminator is trimmed like other whitespace
+     * @param vocab Vocabulary to resolve the tokens in
+     * @param add   Whether to add unseen tokens to vocab (training) or give them ID -1 (decoding)
+     * @return Number of tokens, whose IDs are in ids()
+     */
+    public int tokenize(byte[] line, int from, int to, Vocabulary vocab, boolean add) {
+        //bytes up to ' ' are exactly the characters String.trim strips, and never occur inside a multi-byte character
+        while (from < to && (line[from] & 0xFF) <= ' ') from++;
+        while (to > from && (line[to - 1] & 0xFF) <= ' ') to--;
+        int count = 0;
+        for (int start = from; ; ) {
+            int end = start, length = 0;
+            boolean ascii = true;
+            for (; end < to; end++) {
+                byte b = line[end];
+                if (b == ' ') break;
+                if (b < 0) ascii = false;
+                if (length == token.length) grow();
+                token[length++] = lowercase && b >= 'A' && b <= 'Z' ? (char) (b + ('a' - 'A')) : (char) b;
+            }
+            //decode multi-byte characters properly before resolving
+            if (!ascii) length = fallback(new String(line, start, end - start, StandardCharsets.UTF_8));
+            count = resolve(count, vocab, add, length);
+            if (end >= to) return count;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Tokenize a line held as UTF-8 bytes in a ByteBuffer, such as a memory-mapped file, without copying it out
+     *
+     * @param line  Buffer holding the line, read by absolute index so its position is left alone
+     * @param from  Index of the line's first byte
+     * @param to    Index just past the line's last byte, a trailing line terminator is trimmed like other whitespace
+     * @param vocab Vocabulary to resolve the tokens in
+     * @param add   Whether to add unseen tokens to vocab (training) or give them ID -1 (decoding)
+     * @return Number of tokens, whose IDs are in ids()
+     */
+    public int tokenize(ByteBuffer line, int from, int to, Vocabulary vocab, boolean add) {
+        while (from < to && (line.get(from) & 0xFF) <= ' ') from++;
+        while (to > from && (line.get(to - 1) & 0xFF) <= ' ') to--;
+        int count = 0;
+        for (int start = from; ; ) {
+            int end = start, length = 0;
+            boolean ascii = true;
+            for (; end < to; end++) {
+                byte b = line.get(end);
+                if (b == ' ') break;
+                if (b < 0) ascii = false;
+                if (length == token.length) grow();
+                token[length++] = lowercase && b >= 'A' && b <= 'Z' ? (char) (b + ('a' - 'A')) : (char) b;
+            }
+            if (!ascii) {
+                byte[] raw = new byte[end - start];
+                line.get(start, raw);
+                length = fallback(new String(raw, StandardCharsets.UTF_8));
+            }
+            count = resolve(count, vocab, add, length);
+            if (end >= to) return count;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Resolve the token in the token buffer and append its ID
+     *
+     * @param count  Number of IDs so far
+     * @param vocab  Vocabulary to resolve the token in
+     * @param add    Whether to add the token if it is unseen
+     * @param length Number of characters in the token buffer
+     * @return Number of IDs after appending
+     */
+    private int resolve(int count, Vocabulary vocab, boolean add, int length) {
+        if (count == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+        ids[count] = add ? vocab.add(token, 0, length) : vocab.id(token, 0, length);
+        return count + 1;
+    }
+
+    /**
+     * Put a token with non-ASCII characters into the token buffer, lowercased by String.toLowerCase if this tokenizer
+     * lowercases
+     *
+     * @param raw The token as it appears in the line
+     * @return Number of characters now in the token buffer
+     */
+    private int fallback(String raw) {
+        String s = lowercase ? raw.toLowerCase() : raw;
+        while (token.length < s.length()) grow();
+        s.getChars(0, s.length(), token, 0);
+        return s.length();
+    }
+
+    /**
+     * Double the token buffer
+     */
+    private void grow() {
+        token = Arrays.copyOf(token, token.length * 2);
+    }
+}
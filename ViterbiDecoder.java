@@ -0,0 +1,377 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Array-based Viterbi over a CompiledHMM. Score, state and backpointer buffers are kept between calls and only grow
+ * when a longer sentence arrives, so decoding allocates nothing per token. A decoder is not thread-safe: give each
+ * thread its own, owned by whoever runs the threads rather than by the model, so models stay collectable
+ */
+public class ViterbiDecoder {
+    final CompiledHMM model;        //model being decoded against
+    private double[] currScores;    //best score of reaching each tag ID at the current word
+    private double[] nextScores;    //best score of reaching each tag ID at the next word
+    private double[] emit;          //emission score of the current word under each tag ID, U for tags that never emitted it
+    private int[] candidates;       //tag IDs that emitted the current word in training
+    private int[] currStates;       //tag IDs reachable at the current word, in the order they were first reached
+    private int[] nextStates;       //tag IDs reachable at the next word, in the order they were first reached
+    private int currCount;          //number of tag IDs in currStates
+    private int nextCount;          //number of tag IDs in nextStates
+    private int[] reached;          //reached[t] == step when tag t has been reached during the given step
+    private int step;               //stamp for the reached array, bumped once per word
+    private int[] back;             //backpointers in form [word index * numTags + tag] -> previous tag ID
+    private final Tokenizer tokenizer;  //turns lines into word IDs of the model
+    private int[] tagIds;           //scratch buffer for the tag IDs of a sentence
+    private DecodeOptions oovOptions;   //options the cached oovIds were resolved from
+    private int[] oovIds;           //tag IDs of oovOptions.oovTags
+    private double[] beamScores;    //scratch copy of a column's scores for finding the beam cutoff
+    private int pruned;             //number of states dropped by the beam during the last decode
+    private int numWords;           //number of words in the last decodeLine
+
+    /**
+     * Construct a decoder with buffers sized for the given model
+     *
+     * @param model Compiled model to decode against
+     */
+    public ViterbiDecoder(CompiledHMM model) {
+        this.model = model;
+        int numTags = model.numTags;
+        currScores = new double[numTags];
+        nextScores = new double[numTags];
+        emit = new double[numTags];
+        candidates = new int[numTags];
+        Arrays.fill(emit, model.U);
+        currStates = new int[numTags];
+        nextStates = new int[numTags];
+        reached = new int[numTags];
+        beamScores = new double[numTags];
+        back = new int[numTags * 32];
+        tokenizer = new Tokenizer(true);
+        tagIds = new int[32];
+    }
+
+    /**
+     * Run exhaustive Viterbi on a sentence of word IDs, writing the best tag ID for each word
+     *
+     * @param words Word IDs of the sentence, -1 for words never seen in training
+     * @param n     Number of words in the sentence
+     * @param tags  Output buffer of at least n tag IDs
+     * @return n, or 0 if no tag sequence can produce the sentence
+     */
+    public int decode(int[] words, int n, int[] tags) {
+        return decode(words, n, tags, DecodeOptions.EXHAUSTIVE);
+    }
+
+    /**
+     * Run Viterbi on a sentence of word IDs, writing the best tag ID for each word
+     *
+     * @param words   Word IDs of the sentence, -1 for words never seen in training
+     * @param n       Number of words in the sentence
+     * @param tags    Output buffer of at least n tag IDs
+     * @param options Pruning settings for this call
+     * @return n, or 0 if no tag sequence can produce the sentence
+     */
+    public int decode(int[] words, int n, int[] tags, DecodeOptions options) {
+        int numTags = model.numTags;
+        if (n == 0) return 0;
+        if (back.length < n * numTags) back = new int[Math.max(n, back.length / numTags * 2) * numTags];
+        IntBuffer emitTag = model.emitTag;
+        DoubleBuffer emitScore = model.emitScore;
+        int[] oov = options.tagDictionary ? oovTagIds(options) : null;
+        boolean beam = options.beam();
+        pruned = 0;
+        //start from the '#' state
+        currCount = 1;
+        currStates[0] = CompiledHMM.START;
+        currScores[CompiledHMM.START] = 0.0;
+        //for every observed word in the sentence
+        for (int i = 0; i < n; i++) {
+            int word = words[i];
+            //resolve the word once: gather the tags that emitted it and scatter their scores over the U-filled column
+            int numCandidates = 0;
+            for (int e = model.emitFrom(word), emitTo = model.emitTo(word); e < emitTo; e++) {
+                int tag = emitTag.get(e);
+                candidates[numCandidates++] = tag;
+                emit[tag] = emitScore.get(e);
+            }
+            nextCount = 0;
+            //a wrapped stamp could match a stale entry, so start the stamps over with a clear array
+            if (++step == 0) {
+                Arrays.fill(reached, 0);
+                step = 1;
+            }
+            if (options.tagDictionary) {
+                if (word >= 0) expandCandidates(i, candidates, 0, numCandidates);
+                else if (oov != null) expandCandidates(i, oov, 0, oov.length);
+            }
+            //expand every observed transition when not pruning, or when none of the candidates could be reached
+            if (nextCount == 0) expandAll(i);
+            //put the column back to U for the next word
+            for (int k = 0; k < numCandidates; k++) emit[candidates[k]] = model.U;
+            if (nextCount == 0) return 0;
+            if (beam) prune(options);
+            //step forward by swapping the current and next buffers
+            int[] states = currStates;
+            currStates = nextStates;
+            nextStates = states;
+            double[] scores = currScores;
+            currScores = nextScores;
+            nextScores = scores;
+            currCount = nextCount;
+        }
+        //pick the best final state, the first by name among equals, then follow the backpointers from the last word to the first
+        int[] tagRank = model.tagRank;
+        int best = currStates[0];
+        for (int c = 1; c < currCount; c++) {
+            int state = currStates[c];
+            if (currScores[state] > currScores[best] || (currScores[state] == currScores[best] && tagRank[state] < tagRank[best])) best = state;
+        }
+        tags[n - 1] = best;
+        for (int i = n - 1; i > 0; i--) tags[i - 1] = back[i * numTags + tags[i]];
+        return n;
+    }
+
+    /**
+     * Fill the next column from every transition observed in training out of every current state
+     *
+     * @param i Index of the word being decoded
+     */
+    private void expandAll(int i) {
+        int numTags = model.numTags;
+        IntBuffer succStart = model.succStart, succ = model.succ;
+        DoubleBuffer trans = model.trans;
+        for (int c = 0; c < currCount; c++) {
+            int currState = currStates[c];
+            double currScore = currScores[currState];
+            for (int s = succStart.get(currState), end = succStart.get(currState + 1); s < end; s++) {
+                int nextState = succ.get(s);
+                relax(i, currState, nextState, currScore + trans.get(currState * numTags + nextState) + emit[nextState]);
+            }
+        }
+    }
+
+    /**
+     * Fill the next column with only the given candidate tags, each reached from whichever current states were
+     * observed transitioning to it
+     *
+     * @param i          Index of the word being decoded
+     * @param candidates Array holding the candidate tag IDs
+     * @param from       Index of the first candidate
+     * @param to         Index just past the last candidate
+     */
+    private void expandCandidates(int i, int[] candidates, int from, int to) {
+        int numTags = model.numTags;
+        DoubleBuffer trans = model.trans;
+        for (int k = from; k < to; k++) {
+            int nextState = candidates[k];
+            double obsScore = emit[nextState];
+            for (int c = 0; c < currCount; c++) {
+                int currState = currStates[c];
+                double transScore = trans.get(currState * numTags + nextState);
+                if (transScore == Double.NEGATIVE_INFINITY) continue;
+                relax(i, currState, nextState, currScores[currState] + transScore + obsScore);
+            }
+        }
+    }
+
+    /**
+     * Record a way of reaching nextState at word i, keeping it if it is the first or the best seen so far, or ties the
+     * best from a tag that comes first by name
+     *
+     * @param i         Index of the word being decoded
+     * @param currState Tag ID being transitioned from
+     * @param nextState Tag ID being transitioned to
+     * @param nextScore Score of the path through currState to nextState
+     */
+    private void relax(int i, int currState, int nextState, double nextScore) {
+        if (reached[nextState] != step) {
+            reached[nextState] = step;
+            nextStates[nextCount++] = nextState;
+            nextScores[nextState] = nextScore;
+            back[i * model.numTags + nextState] = currState;
+        } else if (nextScores[nextState] < nextScore || (nextScores[nextState] == nextScore
+                && model.tagRank[currState] < model.tagRank[back[i * model.numTags + nextState]])) {
+            nextScores[nextState] = nextScore;
+            back[i * model.numTags + nextState] = currState;
+        }
+    }
+
+    /**
+     * Drop the states of the next column that fall outside the beam, keeping the survivors in their original order
+     *
+     * @param options Options holding the beam width and threshold
+     */
+    private void prune(DecodeOptions options) {
+        //find the best score in the column, and from it the lowest score the threshold lets survive
+        double best = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < nextCount; c++) best = Math.max(best, nextScores[nextStates[c]]);
+        double cutoff = best - options.beamThreshold;
+        int ties = nextCount;   //how many states scoring exactly the cutoff may still be kept
+        if (options.beamWidth > 0 && nextCount > options.beamWidth) {
+            //the width-th best score raises the cutoff, with ties at it kept only until the beam is full
+            for (int c = 0; c < nextCount; c++) beamScores[c] = nextScores[nextStates[c]];
+            double widthCutoff = kthLargest(beamScores, nextCount, options.beamWidth);
+            if (widthCutoff >= cutoff) {
+                cutoff = widthCutoff;
+                ties = options.beamWidth;
+                for (int c = 0; c < nextCount; c++) {
+                    if (nextScores[nextStates[c]] > cutoff) ties--;
+                }
+            }
+        }
+        int kept = 0;
+        for (int c = 0; c < nextCount; c++) {
+            int state = nextStates[c];
+            double score = nextScores[state];
+            if (score > cutoff || (score == cutoff && ties-- > 0)) nextStates[kept++] = state;
+        }
+        pruned += nextCount - kept;
+        nextCount = kept;
+    }
+
+    /**
+     * Find the k-th largest of the first n values, reordering them in the process
+     *
+     * @param values Scratch array of values
+     * @param n      Number of values to consider
+     * @param k      Rank of the value to find, 1 for the largest
+     * @return The k-th largest value
+     */
+    private static double kthLargest(double[] values, int n, int k) {
+        int lo = 0, hi = n - 1, target = k - 1;
+        //quickselect, partitioning larger values to the front
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (values[i] > pivot) i++;
+                while (values[j] < pivot) j--;
+                if (i <= j) {
+                    double tmp = values[i];
+                    values[i++] = values[j];
+                    values[j--] = tmp;
+                }
+            }
+            if (target <= j) hi = j;
+            else if (target >= i) lo = i;
+            else break;
+        }
+        return values[target];
+    }
+
+    /**
+     * @return Number of states dropped by the beam during the last decode on this decoder
+     */
+    public int prunedStates() {
+        return pruned;
+    }
+
+    /**
+     * Resolve the fallback tags for unseen words to tag IDs, caching them for as long as the same options are used
+     *
+     * @param options Options whose oovTags to resolve
+     * @return The fallback tag IDs, or null to fall back to every tag
+     */
+    private int[] oovTagIds(DecodeOptions options) {
+        if (options != oovOptions) {
+            oovOptions = options;
+            if (options.oovTags == null) oovIds = null;
+            else {
+                //tags that never appeared in training are simply skipped
+                int[] ids = new int[options.oovTags.length];
+                int n = 0;
+                for (String tag : options.oovTags) {
+                    int id = model.tagId(tag);
+                    if (id > CompiledHMM.START) ids[n++] = id;
+                }
+                oovIds = Arrays.copyOf(ids, n);
+            }
+        }
+        return oovIds;
+    }
+
+    /**
+     * Tokenize a sentence the same way HMM.viterbi does and run Viterbi on it
+     *
+     * @param line A test line of words (observations) that tags need to be guessed for
+     * @return The best possible tags at each word, empty if no tag sequence can produce the sentence
+     */
+    public ArrayList<String> viterbi(String line) {
+        return viterbi(line, DecodeOptions.EXHAUSTIVE);
+    }
+
+    /**
+     * Tokenize a sentence the same way HMM.viterbi does and run Viterbi on it
+     *
+     * @param line    A test line of words (observations) that tags need to be guessed for
+     * @param options Pruning settings for this call
+     * @return The best possible tags at each word, empty if no tag sequence can produce the sentence
+     */
+    public ArrayList<String> viterbi(String line, DecodeOptions options) {
+        int length = decodeLine(line, options);
+        ArrayList<String> path = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) path.add(model.tagName(tagIds[i]));
+        return path;
+    }
+
+    /**
+     * Tokenize a sentence held as characters and run Viterbi on it, leaving the tag IDs in tags()
+     *
+     * @param line    A test line of words
+     * @param options Pruning settings for this call
+     * @return Number of tags in tags(), 0 if no tag sequence can produce the sentence
+     */
+    public int decodeLine(CharSequence line, DecodeOptions options) {
+        int n = tokenizer.tokenize(line, model.words, false);
+        return decodeTokens(n, options);
+    }
+
+    /**
+     * Tokenize a sentence held as UTF-8 bytes and run Viterbi on it, leaving the tag IDs in tags()
+     *
+     * @param line    Buffer holding the line
+     * @param from    Index of the line's first byte
+     * @param to      Index just past the line's last byte
+     * @param options Pruning settings for this call
+     * @return Number of tags in tags(), 0 if no tag sequence can produce the sentence
+     */
+    public int decodeLine(byte[] line, int from, int to, DecodeOptions options) {
+        int n = tokenizer.tokenize(line, from, to, model.words, false);
+        return decodeTokens(n, options);
+    }
+
+    /**
+     * @return Tag IDs of the last decodeLine, valid up to the count it returned
+     */
+    public int[] tags() {
+        return tagIds;
+    }
+
+    /**
+     * @return Word IDs of the last decodeLine, -1 for words never seen in training, valid up to wordCount()
+     */
+    public int[] words() {
+        return tokenizer.ids();
+    }
+
+    /**
+     * @return Number of words in the last decodeLine, even when no tag sequence could produce them
+     */
+    public int wordCount() {
+        return numWords;
+    }
+
+    /**
+     * Run Viterbi on the word IDs the tokenizer just produced
+     *
+     * @param n       Number of words
+     * @param options Pruning settings for this call
+     * @return Number of tags in tagIds
+     */
+    private int decodeTokens(int n, DecodeOptions options) {
+        numWords = n;
+        if (tagIds.length < n) tagIds = new int[Math.max(n, tagIds.length * 2)];
+        return decode(tokenizer.ids(), n, tagIds, options);
+    }
+}
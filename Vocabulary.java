@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Interns strings into dense int IDs (0, 1, 2, ...) in the order they are first added, using an open-addressing
+ * hash table over a single pooled character buffer so that entries cost no per-string objects. The buffers are on the
+ * heap while building, but a vocabulary read from a model file is a read-only view of the file's own bytes
+ */
+public class Vocabulary {
+    private CharBuffer chars;   //characters of every entry, back to back
+    private IntBuffer offsets;  //start of entry i in chars is offsets[i], its end is offsets[i + 1]
+    private IntBuffer table;    //open-addressing table holding (entry ID + 1), 0 marks an empty slot
+    private int size;           //number of interned entries
+
+    /**
+     * Construct an empty vocabulary
+     */
+    public Vocabulary() {
+        chars = CharBuffer.allocate(256);
+        offsets = IntBuffer.allocate(17);
+        table = IntBuffer.allocate(32);
+    }
+
+    /**
+     * Construct a vocabulary over existing buffers, those of one that was written out or copied
+     */
+    private Vocabulary(CharBuffer chars, IntBuffer offsets, IntBuffer table, int size) {
+        this.chars = chars;
+        this.offsets = offsets;
+        this.table = table;
+        this.size = size;
+    }
+
+    /**
+     * Write the vocabulary, hash table included, so it can be read back without rehashing anything
+     *
+     * @param out Model file being written
+     * @throws IOException Possible IOException when writing
+     */
+    void write(ModelFile.Writer out) throws IOException {
+        out.putInt(size);
+        out.putInt(offsets.get(size));
+        out.putInt(table.capacity());
+        out.putChars(chars, offsets.get(size));
+        out.putInts(offsets, size + 1);
+        out.putInts(table, table.capacity());
+    }
+
+    /**
+     * @param position Offset in the file write would start writing at
+     * @return Offset just past the last byte write would write from there
+     */
+    long writeEnd(long position) {
+        return writeEnd(position, size, offsets.get(size), table.capacity());
+    }
+
+    /**
+     * @param position    Offset in the file a vocabulary would start at
+     * @param size        Number of entries
+     * @param numChars    Number of characters of every entry together
+     * @param tableLength Length of the hash table
+     * @return Offset just past the last byte of a vocabulary written from there
+     */
+    static long writeEnd(long position, long size, long numChars, long tableLength) {
+        position += 12;
+        position = ModelFile.align(position) + 2L * numChars;
+        position = ModelFile.align(position) + 4L * (size + 1);
+        return ModelFile.align(position) + 4L * tableLength;
+    }
+
+    /**
+     * @param size Number of entries
+     * @return Length of the hash table of a vocabulary with that many entries, as adding them one by one grows it
+     */
+    static int tableCapacity(int size) {
+        int capacity = 32;
+        while (size * 2L > capacity) capacity *= 2;
+        return capacity;
+    }
+
+    /**
+     * @return Bytes of heap the vocabulary's buffers take, spare capacity included
+     */
+    long bytes() {
+        return 2L * chars.capacity() + 4L * offsets.capacity() + 4L * table.capacity();
+    }
+
+    /**
+     * Read a vocabulary written by write, as views of the model file's buffer. It must not be added to afterwards
+     *
+     * @param in Model file being read
+     * @return The vocabulary
+     */
+    static Vocabulary read(ModelFile.Reader in) {
+        int size = in.getInt();
+        int numChars = in.getInt();
+        int tableLength = in.getInt();
+        CharBuffer chars = in.chars(numChars);
+        IntBuffer offsets = in.ints(size + 1);
+        IntBuffer table = in.ints(tableLength);
+        return new Vocabulary(chars, offsets, table, size);
+    }
+
+    /**
+     * @return An independent heap copy of this vocabulary with the same IDs, so adding to either leaves the other
+     * unchanged
+     */
+    Vocabulary copy() {
+        return new Vocabulary(grow(chars, chars.capacity()), grow(offsets, offsets.capacity()), grow(table, table.capacity()), size);
+    }
+
+    /**
+     * @return Number of interned entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the ID of a string without adding it
+     *
+     * @param s String to look up
+     * @return ID of the string, or -1 if it has never been added
+     */
+    public int id(String s) {
+        int mask = table.capacity() - 1;
+        //probe from the string's home slot until we find it or hit an empty slot
+        for (int slot = hash(s) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot) - 1;
+            if (entry < 0) return -1;
+            if (matches(entry, s)) return entry;
+        }
+    }
+
+    /**
+     * Get the ID of a string, interning it with the next free ID if it has never been added
+     *
+     * @param s String to intern
+     * @return ID of the string
+     */
+    public int add(String s) {
+        int mask = table.capacity() - 1;
+        int slot = hash(s) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot) - 1;
+            if (entry < 0) break;
+            if (matches(entry, s)) return entry;
+        }
+        return append(slot, s);
+    }
+
+    /**
+     * Intern a new entry, which was not found by probing up to the given empty slot
+     *
+     * @param slot Empty table slot the probe for the entry ended at
+     * @param s    Characters of the entry
+     * @return ID of the new entry
+     */
+    private int append(int slot, CharSequence s) {
+        //append its characters to the pool
+        int id = size;
+        int start = offsets.get(id);
+        if (offsets.capacity() < id + 2) offsets = grow(offsets, offsets.capacity() * 2);
+        if (chars.capacity() < start + s.length()) chars = grow(chars, Math.max(chars.capacity() * 2, start + s.length()));
+        for (int i = 0; i < s.length(); i++) chars.put(start + i, s.charAt(i));
+        offsets.put(id + 1, start + s.length());
+        table.put(slot, id + 1);
+        size++;
+        //keep the table at most half full so probe sequences stay short
+        if (size * 2 > table.capacity()) rehash();
+        return id;
+    }
+
+    /**
+     * Get the ID of a range of characters without adding it
+     *
+     * @param buf    Buffer holding the characters
+     * @param from   Index of the first character
+     * @param length Number of characters
+     * @return ID of the characters as a string, or -1 if it has never been added
+     */
+    public int id(char[] buf, int from, int length) {
+        int mask = table.capacity() - 1;
+        for (int slot = hash(buf, from, length) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot) - 1;
+            if (entry < 0) return -1;
+            if (matches(entry, buf, from, length)) return entry;
+        }
+    }
+
+    /**
+     * Get the ID of a range of characters, interning them as a new entry if they have never been added
+     *
+     * @param buf    Buffer holding the characters
+     * @param from   Index of the first character
+     * @param length Number of characters
+     * @return ID of the characters as a string
+     */
+    public int add(char[] buf, int from, int length) {
+        int mask = table.capacity() - 1;
+        int slot = hash(buf, from, length) & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            int entry = table.get(slot) - 1;
+            if (entry < 0) break;
+            if (matches(entry, buf, from, length)) return entry;
+        }
+        return append(slot, CharBuffer.wrap(buf, from, length));
+    }
+
+    /**
+     * Get the string with the given ID
+     *
+     * @param id ID of an interned entry
+     * @return The entry as a new String
+     */
+    public String get(int id) {
+        return chars.subSequence(offsets.get(id), offsets.get(id + 1)).toString();
+    }
+
+    /**
+     * Hash a string, spreading the high bits down so the low table bits are well mixed
+     *
+     * @param s String to hash
+     * @return Hash of the string's characters
+     */
+    static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hash a range of characters, matching hash(String) for equal contents
+     *
+     * @param buf    Buffer holding the characters
+     * @param from   Index of the first character
+     * @param length Number of characters
+     * @return Hash of the characters
+     */
+    private static int hash(char[] buf, int from, int length) {
+        int h = 0;
+        for (int i = from; i < from + length; i++) h = 31 * h + buf[i];
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Hash the pooled characters of an entry, matching hash(String) for equal contents
+     *
+     * @param id ID of an interned entry
+     * @return Hash of the entry's characters
+     */
+    private int hashEntry(int id) {
+        int h = 0;
+        for (int i = offsets.get(id); i < offsets.get(id + 1); i++) h = 31 * h + chars.get(i);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param id ID of an interned entry
+     * @param s  String to compare against
+     * @return Whether the entry has exactly the characters of s
+     */
+    private boolean matches(int id, String s) {
+        int start = offsets.get(id);
+        if (offsets.get(id + 1) - start != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.get(start + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param id     ID of an interned entry
+     * @param buf    Buffer holding the characters to compare against
+     * @param from   Index of the first character
+     * @param length Number of characters
+     * @return Whether the entry has exactly the given characters
+     */
+    private boolean matches(int id, char[] buf, int from, int length) {
+        int start = offsets.get(id);
+        if (offsets.get(id + 1) - start != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (chars.get(start + i) != buf[from + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Double the hash table and reinsert every entry
+     */
+    private void rehash() {
+        table = IntBuffer.allocate(table.capacity() * 2);
+        int mask = table.capacity() - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashEntry(id) & mask;
+            while (table.get(slot) != 0) slot = (slot + 1) & mask;
+            table.put(slot, id + 1);
+        }
+    }
+
+    /**
+     * @param buf      Heap buffer to grow
+     * @param capacity New capacity
+     * @return A new heap buffer of the given capacity starting with the contents of buf
+     */
+    private static IntBuffer grow(IntBuffer buf, int capacity) {
+        IntBuffer grown = IntBuffer.allocate(capacity);
+        grown.put(buf.duplicate().clear());
+        return grown.clear();
+    }
+
+    /**
+     * @param buf      Heap buffer to grow
+     * @param capacity New capacity
+     * @return A new heap buffer of the given capacity starting with the contents of buf
+     */
+    private static CharBuffer grow(CharBuffer buf, int capacity) {
+        CharBuffer grown = CharBuffer.allocate(capacity);
+        grown.put(buf.duplicate().clear());
+        return grown.clear();
+    }
+}
@@ -0,0 +1,55 @@
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * Checks that saved models load and map back to the same model, and that a compiled corpus trains a model that tags
+ * like the one trained from the files it was compiled from
+ */
+public class ModelFileTest {
+    /**
+     * @param args Unused
+     * @throws Exception Possible IOException, or an AssertionError on the first difference
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("hmm-test");
+        try {
+            String[] train = TestSupport.corpus(dir, "train", 3000, 0.0, 1);
+            String[] test = TestSupport.corpus(dir, "test", 300, 0.05, 2);
+            HMM hmm = new HMM();
+            hmm.buildHMM(train[0], train[1]);
+            CompiledHMM model = hmm.compile();
+            //save, then load onto the heap and map
+            Path modelFile = dir.resolve("model.bin");
+            model.save(modelFile);
+            CompiledHMM loaded = CompiledHMM.load(modelFile), mapped = CompiledHMM.map(modelFile);
+            String diff = TestSupport.difference(model, loaded);
+            TestSupport.check(diff == null, "Loaded model differs: " + diff);
+            diff = TestSupport.difference(model, mapped);
+            TestSupport.check(diff == null, "Mapped model differs: " + diff);
+            List<String> lines = Files.readAllLines(Paths.get(test[0]));
+            for (String line : lines) {
+                List<String> expected = model.viterbi(line);
+                TestSupport.check(loaded.viterbi(line).equals(expected), "Loaded model tags differently: " + line);
+                TestSupport.check(mapped.viterbi(line).equals(expected), "Mapped model tags differently: " + line);
+            }
+            //compile the training files, then train from the corpus loaded and mapped back
+            Path corpusFile = dir.resolve("train.corpus");
+            int size = CompiledCorpus.compile(train[0], train[1], corpusFile);
+            TestSupport.check(size == 3000, "Compiled " + size + " sentences of 3000");
+            for (CompiledCorpus corpus : new CompiledCorpus[]{CompiledCorpus.load(corpusFile), CompiledCorpus.map(corpusFile)}) {
+                //the tags may be numbered in another order, so compare what the models decode
+                HMM fromCorpus = new HMM();
+                fromCorpus.buildHMM(corpus);
+                CompiledHMM corpusModel = fromCorpus.compile();
+                TestSupport.check(corpusModel.numTags == model.numTags && corpusModel.words.size() == model.words.size(),
+                        "Model trained from the compiled corpus has other vocabularies");
+                for (String line : lines) {
+                    TestSupport.check(corpusModel.viterbi(line).equals(model.viterbi(line)), "Model trained from the compiled corpus tags differently: " + line);
+                }
+            }
+            System.out.println("ModelFileTest: saved models and compiled corpora round-trip");
+        } finally {
+            TestSupport.delete(dir);
+        }
+    }
+}
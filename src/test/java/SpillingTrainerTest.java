@@ -0,0 +1,54 @@
+import java.nio.file.*;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Checks that training in bounded memory builds the same model as training in memory, whether it spills once, a few
+ * times, or after every sentence
+ */
+public class SpillingTrainerTest {
+    /**
+     * @param args Unused
+     * @throws Exception Possible IOException, or an AssertionError on the first difference
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("hmm-test");
+        try {
+            String[] train = TestSupport.corpus(dir, "train", 3000, 0.0, 1);
+            String[] test = TestSupport.corpus(dir, "test", 300, 0.05, 2);
+            double U = new HMM().U;
+            CountTable counts = new CountTable();
+            List<String> wordLines = Files.readAllLines(Paths.get(train[0])), tagLines = Files.readAllLines(Paths.get(train[1]));
+            for (int i = 0; i < wordLines.size(); i++) counts.addSentence(wordLines.get(i), tagLines.get(i));
+            CompiledHMM inMemory = CompiledHMM.compile(counts, U);
+            HMM hmm = new HMM();
+            hmm.buildHMM(train[0], train[1]);
+            List<String> lines = Files.readAllLines(Paths.get(test[0]));
+            //a budget of 1 byte spills every sentence, 64KB a few runs, and 1GB none until finish
+            for (long budget : new long[]{1, 1 << 16, 1L << 30}) {
+                Path spillDir = Files.createDirectory(dir.resolve("spill-" + budget)), modelFile = dir.resolve("model-" + budget);
+                CompiledHMM spilled;
+                int spills;
+                try (SpillingTrainer trainer = new SpillingTrainer(U, budget, spillDir)) {
+                    for (int i = 0; i < wordLines.size(); i++) trainer.addSentence(wordLines.get(i), tagLines.get(i));
+                    spilled = trainer.finish(modelFile);
+                    spills = trainer.spills;
+                }
+                TestSupport.check(budget > 1 || spills > 1, "A 1 byte budget spilled only " + spills + " runs");
+                try (Stream<Path> left = Files.list(spillDir)) {
+                    TestSupport.check(left.count() == 0, "Run files left behind at budget " + budget);
+                }
+                String diff = TestSupport.difference(inMemory, spilled);
+                TestSupport.check(diff == null, "Spilled model at budget " + budget + " differs: " + diff);
+                diff = TestSupport.difference(inMemory, CompiledHMM.load(modelFile));
+                TestSupport.check(diff == null, "Saved spilled model at budget " + budget + " differs: " + diff);
+                for (String line : lines) {
+                    TestSupport.check(spilled.viterbi(line).equals(hmm.viterbi(line)), "Spilled model at budget " + budget + " tags differently: " + line);
+                }
+            }
+            System.out.println("SpillingTrainerTest: spilled models equal the in-memory model at every budget");
+        } finally {
+            TestSupport.delete(dir);
+        }
+    }
+}
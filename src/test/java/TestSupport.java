@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Fixtures shared by the tests: small generated corpora, a field-by-field model comparison, and a check that fails
+ * with a message. The tests are plain mains, so the build needs no test framework
+ */
+class TestSupport {
+    static final CorpusGenerator GENERATOR = new CorpusGenerator(2000, 20, 1.0, 7);    //one "language" for every corpus
+
+    /**
+     * Write a generated pair of corpus files
+     *
+     * @param dir        Directory to write them to
+     * @param name       Prefix of the file names
+     * @param sentences  Number of sentences
+     * @param oovRate    Fraction of words outside the generator's vocabulary
+     * @param streamSeed Seed of the sentences
+     * @return Paths of the sentence file and the tag file
+     * @throws IOException Possible IOException when writing
+     */
+    static String[] corpus(Path dir, String name, int sentences, double oovRate, long streamSeed) throws IOException {
+        Path words = dir.resolve(name + "-sentences.txt"), tags = dir.resolve(name + "-tags.txt");
+        GENERATOR.write(words, tags, sentences, Long.MAX_VALUE, new CorpusGenerator.Lengths("uniform:1:25"), oovRate, streamSeed);
+        return new String[]{words.toString(), tags.toString()};
+    }
+
+    /**
+     * @param condition What must hold
+     * @param message   What went wrong if it does not
+     * @throws AssertionError If the condition does not hold
+     */
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    /**
+     * Compare two models with the same tag IDs table by table, matching words by string since their IDs may differ
+     *
+     * @param a One model
+     * @param b The other model
+     * @return The first difference found, or null if the models are the same
+     */
+    static String difference(CompiledHMM a, CompiledHMM b) {
+        if (a.numTags != b.numTags) return "numTags " + a.numTags + " vs " + b.numTags;
+        for (int t = 0; t < a.numTags; t++) if (!a.tagName(t).equals(b.tagName(t))) return "tag " + t;
+        for (int i = 0; i < a.numTags * a.numTags; i++) {
+            if (Double.compare(a.trans.get(i), b.trans.get(i)) != 0) return "transition " + i;
+        }
+        if (!a.succStart.equals(b.succStart) || !a.succ.equals(b.succ)) return "successors";
+        if (a.words.size() != b.words.size()) return "numWords " + a.words.size() + " vs " + b.words.size();
+        for (int w = 0; w < a.words.size(); w++) {
+            String word = a.words.get(w);
+            int v = b.words.id(word);
+            if (v < 0) return "missing word " + word;
+            int n = a.emitTo(w) - a.emitFrom(w);
+            if (n != b.emitTo(v) - b.emitFrom(v)) return "emission count of " + word;
+            for (int k = 0; k < n; k++) {
+                if (a.emitTag.get(a.emitFrom(w) + k) != b.emitTag.get(b.emitFrom(v) + k)) return "emission tag of " + word;
+                if (Double.compare(a.emitScore.get(a.emitFrom(w) + k), b.emitScore.get(b.emitFrom(v) + k)) != 0) {
+                    return "emission score of " + word;
+                }
+            }
+        }
+        return Double.compare(a.U, b.U) != 0 ? "U" : null;
+    }
+
+    /**
+     * Delete a directory and everything in it
+     *
+     * @param dir Directory to delete
+     * @throws IOException Possible IOException when deleting
+     */
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * Checks that the compiled decoders tag every sentence exactly as HMM.viterbi does, on known and unseen words alike.
+ * A tiny training corpus and many unseen words make equal scores common, so tie-breaking is checked too
+ */
+public class ViterbiDecoderTest {
+    /**
+     * @param args Unused
+     * @throws Exception Possible IOException, or an AssertionError on the first sentence tagged differently
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("hmm-test");
+        try {
+            String[] test = TestSupport.corpus(dir, "test", 500, 0.3, 2);
+            List<String> lines = Files.readAllLines(Paths.get(test[0]));
+            for (int sentences : new int[]{30, 3000}) {
+                String[] train = TestSupport.corpus(dir, "train-" + sentences, sentences, 0.0, 1);
+                HMM hmm = new HMM();
+                hmm.buildHMM(train[0], train[1]);
+                CompiledHMM model = hmm.compile();
+                ViterbiDecoder decoder = new ViterbiDecoder(model);
+                for (String line : lines) {
+                    List<String> expected = hmm.viterbi(line);
+                    TestSupport.check(decoder.viterbi(line).equals(expected), "ViterbiDecoder differs from HMM.viterbi on: " + line);
+                    TestSupport.check(model.viterbi(line).equals(expected), "CompiledHMM.viterbi differs from HMM.viterbi on: " + line);
+                }
+            }
+            System.out.println("ViterbiDecoderTest: " + lines.size() + " sentences tagged as HMM.viterbi tags them");
+        } finally {
+            TestSupport.delete(dir);
+        }
+    }
+}